@@ -59,10 +59,7 @@ class BootCompleteReceiver : BroadcastReceiver() {
                     .clear()
                     .build()
             }
-            appDatabase.updateInfoDao().apply {
-                clearChangelogs()
-                clearBuildInfo()
-            }
+            appDatabase.updateInfoDao().clearAll()
             context.cacheDir.listFiles()?.forEach {
                 it.delete()
             }
@@ -26,4 +26,20 @@ data class BuildInfo(
     val fileName: String,
     val fileSize: Long,
     val sha512: String,
-)
\ No newline at end of file
+    val chunkSize: Long?,
+    val chunkHashes: List<String>?,
+) {
+    /**
+     * Get the urls the update can be fetched from.
+     *
+     * @param downloadSource name of the source in [downloadSources] to use.
+     *   If null or unknown, all sources and [url] are returned, in that order.
+     * @return the urls, without duplicates.
+     */
+    fun getMirrors(downloadSource: String? = null): List<String> {
+        val selectedSource = downloadSource?.let { downloadSources?.get(it) }
+        if (selectedSource != null) return listOf(selectedSource)
+        val sources = downloadSources?.values ?: emptyList()
+        return (sources + listOfNotNull(url)).distinct()
+    }
+}
\ No newline at end of file
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data
+
+import java.net.HttpURLConnection
+
+import okhttp3.ResponseBody
+
+import retrofit2.Response
+
+/**
+ * Content of a response that may have been served from the HTTP cache.
+ * The body is only parsed when [content] is first accessed, so that
+ * callers can skip it when [notModified] is enough to go on.
+ *
+ * @property notModified true if the server confirmed that the cached
+ *   copy is still up-to-date.
+ * @param parse function to parse the body with.
+ */
+class CachedContent<T>(
+    val notModified: Boolean,
+    parse: () -> T,
+) {
+    /**
+     * The parsed body of the response.
+     */
+    val content: T by lazy(parse)
+
+    companion object {
+        fun <T> from(response: Response<ResponseBody>, parse: (ResponseBody) -> T) =
+            CachedContent(
+                response.raw().networkResponse?.code == HttpURLConnection.HTTP_NOT_MODIFIED
+            ) {
+                response.body()?.let(parse)
+            }
+    }
+}
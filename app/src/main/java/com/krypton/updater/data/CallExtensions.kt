@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data
+
+import java.io.IOException
+
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+import kotlinx.coroutines.suspendCancellableCoroutine
+
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.Response
+
+/**
+ * Execute this [Call] asynchronously and suspend until the response
+ * headers are available. The call is cancelled if the coroutine is.
+ * Caller is responsible for closing the [Response].
+ */
+suspend fun Call.await(): Response =
+    suspendCancellableCoroutine { continuation ->
+        continuation.invokeOnCancellation {
+            cancel()
+        }
+        enqueue(object : Callback {
+            override fun onResponse(call: Call, response: Response) {
+                continuation.resume(response) {
+                    response.close()
+                }
+            }
+
+            override fun onFailure(call: Call, e: IOException) {
+                continuation.resumeWithException(e)
+            }
+        })
+    }
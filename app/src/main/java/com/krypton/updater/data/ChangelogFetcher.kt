@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data
+
+import android.util.Log
+
+import com.krypton.updater.data.retrofit.Content
+import com.krypton.updater.data.retrofit.GithubApiService
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+
+/**
+ * Fetches changelog files with at most [parallelism] requests in flight.
+ *
+ * @param githubApiService the service to fetch the files with.
+ * @param parallelism the maximum number of concurrent requests.
+ */
+class ChangelogFetcher(
+    private val githubApiService: GithubApiService,
+    private val parallelism: Int,
+) {
+
+    /**
+     * Fetch the given changelog files, collecting each one as soon as it
+     * arrives. Files that fail to download, including the ones the server
+     * answers with an error status, are left out so that they are not
+     * saved and are fetched again on the next check.
+     *
+     * @param contentList the changelog files to fetch.
+     * @return a [Map] of file name with it's content as a [String].
+     */
+    suspend fun fetch(contentList: List<Content>): Map<String, String> {
+        val changelogMap = mutableMapOf<String, String>()
+        val semaphore = Semaphore(parallelism)
+        channelFlow {
+            contentList.forEach { content ->
+                launch {
+                    semaphore.withPermit {
+                        try {
+                            val response = githubApiService.getChangelog(content.url)
+                            val changelog = response.body()
+                            if (response.isSuccessful && changelog != null) {
+                                send(content.name to changelog)
+                            } else {
+                                Log.e(TAG, "Failed to fetch ${content.name}, code = ${response.code()}")
+                            }
+                        } catch (e: CancellationException) {
+                            throw e
+                        } catch (e: Exception) {
+                            Log.e(TAG, "Failed to fetch ${content.name}", e)
+                        }
+                    }
+                }
+            }
+        }.collect { (name, changelog) ->
+            changelogMap[name] = changelog
+        }
+        return changelogMap.toMap()
+    }
+
+    companion object {
+        private const val TAG = "ChangelogFetcher"
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data
+
+/**
+ * Changes to apply on top of the saved changelogs.
+ *
+ * @property removed names of the changelog files that should be dropped.
+ * @property changelogs changelog files that are new or have been modified.
+ */
+data class ChangelogSync(
+    val removed: Set<String>,
+    val changelogs: List<Changelog>,
+) {
+    data class Changelog(
+        val name: String,
+        val sha: String,
+        val date: Long,
+        val content: String?,
+    )
+}
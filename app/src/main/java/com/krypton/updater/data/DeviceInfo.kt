@@ -20,6 +20,8 @@ import android.os.SystemProperties
 
 object DeviceInfo {
     private const val PROP_DEVICE = "ro.krypton.build.device"
+    private const val PROP_PRODUCT_DEVICE = "ro.product.device"
+    private const val PROP_FINGERPRINT = "ro.build.fingerprint"
     private const val PROP_DATE = "ro.build.date.utc"
     private const val PROP_VERSION = "ro.krypton.build.version"
     private const val PROP_BUILD_VERSION_INCREMENTAL = "ro.build.version.incremental"
@@ -30,6 +32,16 @@ object DeviceInfo {
      */
     fun getDevice(): String = SystemProperties.get(PROP_DEVICE, "Unknown")
 
+    /**
+     * Get product device name, the one OTA packages are built for.
+     */
+    fun getProductDevice(): String = SystemProperties.get(PROP_PRODUCT_DEVICE, "Unknown")
+
+    /**
+     * Get build fingerprint.
+     */
+    fun getFingerprint(): String = SystemProperties.get(PROP_FINGERPRINT, "")
+
     /**
      * Get build date as unix timestamp (milliseconds since epoch).
      */
@@ -17,7 +17,10 @@
 package com.krypton.updater.data
 
 sealed interface FileCopyStatus {
-    object Copying : FileCopyStatus
+    /**
+     * @property progress copy progress in percentage, null if unknown.
+     */
+    data class Copying(val progress: Float? = null) : FileCopyStatus
     object Success : FileCopyStatus
     class Failure(val reason: String?) : FileCopyStatus
 }
\ No newline at end of file
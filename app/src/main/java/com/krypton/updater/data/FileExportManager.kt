@@ -18,15 +18,14 @@ package com.krypton.updater.data
 
 import android.content.Context
 import android.net.Uri
-import android.os.FileUtils
+import android.util.Log
 
 import androidx.documentfile.provider.DocumentFile
+import com.krypton.updater.data.download.FanOutCopier
 import com.krypton.updater.data.download.HashVerifier
 
 import dagger.hilt.android.qualifiers.ApplicationContext
 
-import java.io.File
-import java.io.FileInputStream
 import java.io.IOException
 
 import javax.inject.Inject
@@ -37,46 +36,51 @@ class FileExportManager @Inject constructor(
     @ApplicationContext private val context: Context
 ) {
     /**
-     * Copies a file to export directory.
+     * Create a [FanOutCopier.Sink] for a new file in the export directory.
+     * A file that was exported before and matches [sha512] is kept as is,
+     * anything else with the same name is replaced.
      *
-     * @param inputFile the file to copy.
-     * @param name the name of the moved file. Defaults to the name of [inputFile].
-     * @return a [Result] indicating whether copying was successful or not.
+     * @param name the name of the exported file.
+     * @param sha512 the expected SHA-512 hash of the file.
+     * @return a [Result] of the sink, which is null if the file
+     *   has been exported already.
      */
-    fun copyToExportDir(inputFile: File, name: String = inputFile.name): Result<Unit> {
+    fun createExportSink(name: String, sha512: String): Result<FanOutCopier.Sink?> {
         val treeFileResult = getExportDir().onFailure {
             return Result.failure(it)
         }
         val treeFile = treeFileResult.getOrThrow()
         treeFile.findFile(name)?.takeIf { it.isFile }?.let {
             try {
-                context.contentResolver.openInputStream(it.uri)?.use { firstFileInputStream ->
-                    FileInputStream(inputFile).use { secondFileInputStream ->
-                        val hashVerified =
-                            HashVerifier.verifyHash(firstFileInputStream, secondFileInputStream)
-                        if (hashVerified) {
-                            return Result.success(Unit)
-                        } else {
-                            it.delete()
-                        }
+                context.contentResolver.openInputStream(it.uri)?.use { inputStream ->
+                    if (HashVerifier.verifyHash(inputStream, sha512)) {
+                        return Result.success(null)
                     }
                 }
             } catch (e: IOException) {
-                it.delete()
+                Log.w(TAG, "Failed to verify exported file, ${e.message}")
             }
+            it.delete()
         }
         val exportFile = treeFile.createFile("application/zip", name)
             ?: return Result.failure(Exception("Failed to create export file"))
-        return context.contentResolver.openOutputStream(exportFile.uri)?.use { outStream ->
-            FileInputStream(inputFile).use { inStream ->
-                val copiedBytes = FileUtils.copy(inStream, outStream)
-                if (copiedBytes != inputFile.length()) {
-                    Result.failure(Exception("Failed to copy entire file"))
-                } else {
-                    Result.success(Unit)
+        return Result.success(
+            FanOutCopier.Sink(
+                name = exportFile.uri.toString(),
+                open = {
+                    context.contentResolver.openOutputStream(exportFile.uri)
+                        ?: throw IOException("Failed to open output stream")
+                },
+                openForReadBack = {
+                    context.contentResolver.openInputStream(exportFile.uri)
+                        ?: throw IOException("Failed to open input stream")
+                },
+                onFinished = { result ->
+                    if (result.isFailure) exportFile.delete()
+                    result
                 }
-            }
-        } ?: Result.failure(Exception("Failed to open output stream"))
+            )
+        )
     }
 
     private fun getExportDir(): Result<DocumentFile> {
@@ -97,4 +101,8 @@ class FileExportManager @Inject constructor(
      * @return the uri
      */
     fun getExportDirUri(): Result<Uri> = getExportDir().map { it.uri }
-}
\ No newline at end of file
+
+    companion object {
+        private const val TAG = "FileExportManager"
+    }
+}
@@ -16,100 +16,148 @@
 
 package com.krypton.updater.data
 
+import android.content.Context
+import android.util.DataUnit
 import android.util.Log
 
 import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import com.krypton.updater.R
 import com.krypton.updater.data.retrofit.Content
 import com.krypton.updater.data.retrofit.OTAJsonContent
 import com.krypton.updater.data.retrofit.GithubApiService
 
+import dagger.hilt.android.qualifiers.ApplicationContext
+
+import java.io.File
+import java.io.IOException
+
 import javax.inject.Inject
 import javax.inject.Singleton
 
+import kotlinx.coroutines.CancellationException
+
+import okhttp3.Cache
+import okhttp3.CacheControl
 import okhttp3.logging.HttpLoggingInterceptor
 import okhttp3.OkHttpClient
+import okhttp3.ResponseBody
 
 import retrofit2.converter.scalars.ScalarsConverterFactory
 import retrofit2.converter.jackson.JacksonConverterFactory
 import retrofit2.Retrofit
 
 @Singleton
-class GithubApiHelper @Inject constructor() {
-
-    private val okHttpClient: OkHttpClient = OkHttpClient.Builder().apply {
+class GithubApiHelper @Inject constructor(
+    @ApplicationContext context: Context,
+    sharedOkHttpClient: OkHttpClient,
+) {
+
+    private val changelogFetchParallelism =
+        context.resources.getInteger(R.integer.changelog_fetch_parallelism).coerceAtLeast(1)
+
+    // Derived from the shared client so that the connection pool is shared as well.
+    // Only metadata is cached, downloads go through the shared client directly.
+    private val okHttpClient: OkHttpClient = sharedOkHttpClient.newBuilder().apply {
+        cache(Cache(File(context.cacheDir, HTTP_CACHE_DIR), HTTP_CACHE_SIZE))
+        // Always revalidate with the server, a 304 costs next to nothing
+        // and doesn't count against the rate limit of the github api.
+        addInterceptor { chain ->
+            chain.proceed(
+                chain.request().newBuilder()
+                    .cacheControl(CacheControl.Builder().noCache().build())
+                    .build()
+            )
+        }
         if (DEBUG) addInterceptor(HttpLoggingInterceptor().also {
             it.level = HttpLoggingInterceptor.Level.BODY
         })
     }.build()
 
+    private val objectMapper = jacksonObjectMapper()
+
     private val retrofit = Retrofit.Builder()
         .baseUrl(GITHUB_API_URL)
         .addConverterFactory(ScalarsConverterFactory.create())
-        .addConverterFactory(JacksonConverterFactory.create(jacksonObjectMapper()))
+        .addConverterFactory(JacksonConverterFactory.create(objectMapper))
         .client(okHttpClient)
         .build()
 
     private val githubApiService = retrofit.create(GithubApiService::class.java)
 
     /**
-     * Fetch OTA json file from github.
-     * This method should not be called from main thread.
+     * Fetch OTA json file from github. The request is cancelled
+     * if the calling coroutine is cancelled.
      *
      * @param device the device to fetch OTA json for.
      * @param incremental whether to fetch incremental update.
-     * @return the OTA json file parsed as a [Result] of type [OTAJsonContent].
-     *   (Maybe null if OTA info is not available).
-     *   [Result] will represent a failure if an exception was thrown.
+     * @return the OTA json file as a [Result] of type [OTAJsonContent]
+     *   wrapped in a [CachedContent]. (Maybe null if OTA info is not available
+     *   or could not be parsed). [Result] will represent a failure if an
+     *   exception was thrown.
      */
-    fun getBuildInfo(device: String, incremental: Boolean): Result<OTAJsonContent?> =
-        runCatching {
-            githubApiService
-                .getOTAJsonContent(getUrlForDevice(device, incremental))
-                .execute()
-                .body()
+    suspend fun getBuildInfo(
+        device: String,
+        incremental: Boolean
+    ): Result<CachedContent<OTAJsonContent?>> =
+        try {
+            Result.success(
+                CachedContent.from(
+                    githubApiService.getOTAJsonContent(getUrlForDevice(device, incremental)),
+                    ::parseOTAJson
+                )
+            )
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            Result.failure(e)
+        }
+
+    private fun parseOTAJson(body: ResponseBody): OTAJsonContent? =
+        try {
+            body.byteStream().use {
+                objectMapper.readValue(it, OTAJsonContent::class.java)
+            }
+        } catch (e: IOException) {
+            // Covers jackson's parse errors as well
+            Log.e(TAG, "Failed to parse OTA json", e)
+            null
         }
 
     /**
-     * Fetch changelogs from github. This method should not be called
-     * from main thread.
+     * List the changelog files in github along with their git blob sha.
      *
-     * @param device the device to fetch changelogs for.
-     * @return the changelogs parsed as a [Result] with type as a [Map] of
-     *   file name with it's content as a [String]. (Maybe empty id changelog
-     *   is not available). [Result] will represent a failure if an exception
-     *   was thrown.
+     * @param device the device to list changelogs for.
+     * @return the changelog files as a [Result] of [List] of [Content].
+     *   (Maybe null if changelog is not available). [Result] will represent
+     *   a failure if an exception was thrown.
      */
-    fun getChangelogs(device: String): Result<Map<String, String?>?> =
+    suspend fun listChangelogs(device: String): Result<List<Content>?> =
         try {
-            val contentList: List<Content>? = githubApiService
-                .getContents(device, GIT_BRANCH)
-                .execute()
-                .body()
-                ?.filterNot {
+            val contentList: List<Content>? =
+                githubApiService.getContents(device, GIT_BRANCH).body()
+            Result.success(
+                contentList?.filterNot {
                     it.name == OTA_JSON || it.name == INCREMENTAL_OTA_JSON
                 }
-            when {
-                contentList == null -> {
-                    Result.success(null)
-                }
-                contentList.isEmpty() -> {
-                    Result.success(emptyMap())
-                }
-                else -> {
-                    val changelogMap = mutableMapOf<String, String?>()
-                    contentList.forEach {
-                        changelogMap[it.name] = githubApiService
-                            .getChangelog(it.url)
-                            .execute()
-                            .body()
-                    }
-                    Result.success(changelogMap.toMap())
-                }
-            }
+            )
+        } catch (e: CancellationException) {
+            throw e
         } catch (e: Exception) {
             Result.failure(e)
         }
 
+    private val changelogFetcher =
+        ChangelogFetcher(githubApiService, changelogFetchParallelism)
+
+    /**
+     * Fetch the given changelog files, see [ChangelogFetcher.fetch].
+     *
+     * @param contentList the changelog files to fetch.
+     * @return a [Map] of file name with it's content as a [String].
+     */
+    suspend fun fetchChangelogs(contentList: List<Content>): Map<String, String> =
+        changelogFetcher.fetch(contentList)
+
     companion object {
         private const val TAG = "GithubApiHelper"
         private val DEBUG: Boolean
@@ -121,6 +169,9 @@ class GithubApiHelper @Inject constructor() {
         private const val OTA_JSON = "ota.json"
         private const val INCREMENTAL_OTA_JSON = "incremental_ota.json"
 
+        private const val HTTP_CACHE_DIR = "http_cache"
+        private val HTTP_CACHE_SIZE = DataUnit.MEBIBYTES.toBytes(10)
+
         private const val GITHUB_API_URL = "https://api.github.com/repos/AOSP-Krypton/ota/"
         private const val OTA_URL = "https://raw.githubusercontent.com/AOSP-Krypton/ota/"
 
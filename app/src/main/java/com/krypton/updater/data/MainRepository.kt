@@ -21,10 +21,18 @@ import android.app.PendingIntent
 import android.content.Context
 import android.content.Intent
 import android.os.SystemClock
+import android.util.Log
 
+import androidx.paging.Pager
+import androidx.paging.PagingConfig
+import androidx.paging.PagingData
+
+import com.krypton.updater.R
 import com.krypton.updater.data.room.AppDatabase
 import com.krypton.updater.data.room.BuildInfoEntity
+import com.krypton.updater.data.room.BuildInfoWithSources
 import com.krypton.updater.data.room.ChangelogEntity
+import com.krypton.updater.data.room.ChangelogItem
 import com.krypton.updater.data.settings.appSettingsDataStore
 import com.krypton.updater.services.PeriodicUpdateCheckerService
 
@@ -36,13 +44,21 @@ import java.util.Date
 import javax.inject.Inject
 import javax.inject.Singleton
 
+import kotlinx.coroutines.async
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.NonCancellable
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.SharingStarted
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
 
 @Singleton
@@ -62,6 +78,17 @@ class MainRepository @Inject constructor(
     private val appSettingsDataStore = context.appSettingsDataStore
     private val updateInfoDao = appDatabase.updateInfoDao()
 
+    private val freshnessWindow = TimeUnit.SECONDS.toMillis(
+        context.resources.getInteger(R.integer.update_check_freshness_window).toLong()
+    )
+
+    // Guards the fields below
+    private val fetchMutex = Mutex()
+    private var ongoingFetch: Deferred<Result<Unit>>? = null
+    private var fetchWaiters = 0
+    private var lastFetchTime = 0L
+    private var lastFetchOptOutIncremental = false
+
     val systemBuildDate = Date(DeviceInfo.getBuildDate())
 
     val systemBuildVersion: String = DeviceInfo.getBuildVersion()
@@ -69,25 +96,47 @@ class MainRepository @Inject constructor(
     val lastCheckedTime: Flow<Date>
         get() = savedStateDatastore.data.map { Date(it.lastCheckedTime) }
 
-    fun getUpdateInfo(): Flow<UpdateInfo> {
-        return updateInfoDao.getBuildInfo().combine(
-            updateInfoDao.getChangelogs()
-        ) { buildInfoEntity, changelogs ->
-            val buildInfo = buildInfoEntity?.let {
-                BuildInfo(
-                    it.version,
-                    it.date,
-                    it.preBuildIncremental,
-                    it.url,
-                    it.downloadSources,
-                    it.fileName,
-                    it.fileSize,
-                    it.sha512,
-                )
+    /**
+     * The saved [UpdateInfo], shared by all collectors so that each
+     * database change is queried and mapped only once. Changelogs
+     * are not part of it, use [getChangelogs] for those.
+     */
+    val updateInfo: StateFlow<UpdateInfo> = observeUpdateInfo().stateIn(
+        applicationScope,
+        SharingStarted.WhileSubscribed(UPDATE_INFO_STOP_TIMEOUT),
+        UpdateInfo(buildInfo = null)
+    )
+
+    /**
+     * Read the saved [UpdateInfo] straight from the database. Unlike
+     * [updateInfo], this is guaranteed to reflect writes that have
+     * already completed, like the ones of [fetchUpdateInfo].
+     */
+    suspend fun readUpdateInfo(): UpdateInfo = observeUpdateInfo().first()
+
+    /**
+     * Changelogs of the saved update, paged and sorted by date.
+     * Meant to be collected only while the changelogs are shown.
+     *
+     * @param query the text to search for. All changelogs are
+     *   returned if it is blank.
+     */
+    fun getChangelogs(query: String): Flow<PagingData<ChangelogItem>> {
+        val ftsQuery = toFtsQuery(query)
+        return Pager(PagingConfig(pageSize = CHANGELOG_PAGE_SIZE)) {
+            if (ftsQuery == null) {
+                updateInfoDao.getChangelogItems()
+            } else {
+                updateInfoDao.searchChangelogs(ftsQuery)
             }
+        }.flow
+    }
+
+    private fun observeUpdateInfo(): Flow<UpdateInfo> {
+        return updateInfoDao.getBuildInfo().map { buildInfoEntity ->
+            val buildInfo = buildInfoEntity?.toBuildInfo()
             UpdateInfo(
                 buildInfo,
-                changelogs,
                 type = if (buildInfo == null) {
                     UpdateInfo.Type.UNKNOWN
                 } else {
@@ -107,20 +156,78 @@ class MainRepository @Inject constructor(
     }
 
     /**
-     * Check for updates in github.
+     * Check for updates in github. Concurrent callers share a single check,
+     * and a check that succeeded less than [freshnessWindow] ms ago is reused
+     * without touching the network. The check is cancelled once every
+     * caller waiting for it is cancelled.
      *
      * @return a [Result] representing whether fetch was success or not.
      */
     suspend fun fetchUpdateInfo(): Result<Unit> {
-        deleteSavedUpdateInfo()
-        savedStateDatastore.updateData {
-            it.toBuilder()
-                .clear()
-                .build()
+        val optOutIncremental = appSettingsDataStore.data.map { it.optOutIncremental }.first()
+        val fetch = fetchMutex.withLock {
+            if (lastFetchTime != 0L &&
+                lastFetchOptOutIncremental == optOutIncremental &&
+                SystemClock.elapsedRealtime() - lastFetchTime < freshnessWindow
+            ) {
+                return Result.success(Unit)
+            }
+            fetchWaiters++
+            ongoingFetch?.takeIf { it.isActive }
+                ?: applicationScope.async { fetchUpdateInfoSafely() }.also {
+                    ongoingFetch = it
+                }
+        }
+        try {
+            return fetch.await()
+        } finally {
+            withContext(NonCancellable) {
+                fetchMutex.withLock {
+                    fetchWaiters--
+                    if (fetchWaiters == 0 && fetch.isActive) fetch.cancel()
+                }
+            }
+        }
+    }
+
+    /**
+     * Make the next [fetchUpdateInfo] go to the network
+     * even if the last check is still fresh.
+     */
+    suspend fun invalidateLastFetch() {
+        fetchMutex.withLock {
+            lastFetchTime = 0L
         }
+    }
+
+    // Runs in applicationScope, an exception escaping it would cancel the whole scope
+    private suspend fun fetchUpdateInfoSafely(): Result<Unit> =
+        try {
+            fetchUpdateInfoInternal()
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to fetch update info", e)
+            Result.failure(e)
+        }
+
+    private suspend fun fetchUpdateInfoInternal(): Result<Unit> {
         val optOutIncremental = appSettingsDataStore.data.map { it.optOutIncremental }.first()
-        val result = withContext(Dispatchers.IO) {
-            updateChecker.checkForUpdate(!optOutIncremental)
+        val storedBuildInfo = withContext(Dispatchers.IO) {
+            updateInfoDao.getBuildInfo().first()?.toBuildInfo()
+        }
+        val result = updateChecker.checkForUpdate(!optOutIncremental, storedBuildInfo)
+        when (val checkResult = result.getOrNull()) {
+            null -> {
+                deleteSavedUpdateInfo()
+                clearSavedState()
+            }
+            is UpdateCheckResult.Updated -> {
+                clearSavedState()
+                saveUpdateInfo(checkResult.updateInfo?.buildInfo)
+            }
+            // Saved info is still valid if the server says nothing changed
+            UpdateCheckResult.NotModified -> syncChangelogs(storedBuildInfo)
         }
         savedStateDatastore.updateData {
             it.toBuilder()
@@ -128,7 +235,10 @@ class MainRepository @Inject constructor(
                 .build()
         }
         return if (result.isSuccess) {
-            result.getOrThrow()?.let { saveUpdateInfo(it) }
+            fetchMutex.withLock {
+                lastFetchTime = SystemClock.elapsedRealtime()
+                lastFetchOptOutIncremental = optOutIncremental
+            }
             applicationScope.launch {
                 setRecheckAlarm(getUpdateCheckInterval())
             }
@@ -145,38 +255,62 @@ class MainRepository @Inject constructor(
     }
 
     private suspend fun deleteSavedUpdateInfo() {
+        invalidateLastFetch()
         withContext(Dispatchers.IO) {
-            updateInfoDao.apply {
-                clearBuildInfo()
-                clearChangelogs()
-            }
+            updateInfoDao.clearAll()
+        }
+    }
+
+    private suspend fun clearSavedState() {
+        savedStateDatastore.updateData {
+            it.toBuilder()
+                .clear()
+                .build()
         }
     }
 
-    private suspend fun saveUpdateInfo(updateInfo: UpdateInfo) {
+    private suspend fun syncChangelogs(buildInfo: BuildInfo?) {
+        withContext(Dispatchers.IO) {
+            val changelogSync = updateChecker.getChangelogSync(
+                buildInfo,
+                updateInfoDao.getChangelogShas()
+            ) ?: return@withContext
+            updateInfoDao.syncChangelogs(
+                changelogSync.removed,
+                changelogSync.toEntities()
+            )
+        }
+    }
+
+    /**
+     * Replace the saved build info with [buildInfo] and sync the changelogs
+     * for it. Changelogs are fetched first so that everything is written in
+     * a single transaction, and observers never see the tables half empty.
+     */
+    private suspend fun saveUpdateInfo(buildInfo: BuildInfo?) {
         withContext(Dispatchers.IO) {
-            updateInfo.buildInfo?.let {
-                updateInfoDao.insertBuildInfo(
+            val changelogSync = updateChecker.getChangelogSync(
+                buildInfo,
+                updateInfoDao.getChangelogShas()
+            )
+            updateInfoDao.replaceUpdateInfo(
+                buildInfo?.let {
                     BuildInfoEntity(
                         version = it.version,
                         date = it.date,
                         preBuildIncremental = it.preBuildIncremental,
                         url = it.url,
-                        downloadSources = it.downloadSources,
                         fileName = it.fileName,
                         fileSize = it.fileSize,
-                        sha512 = it.sha512
+                        sha512 = it.sha512,
+                        chunkSize = it.chunkSize,
+                        chunkHashes = it.chunkHashes,
                     )
-                )
-            }
-            updateInfo.changelog?.map {
-                ChangelogEntity(
-                    date = it.key,
-                    changelog = it.value
-                )
-            }?.let {
-                updateInfoDao.insertChangelog(it)
-            }
+                },
+                buildInfo?.downloadSources,
+                changelogSync?.removed ?: emptySet(),
+                changelogSync?.toEntities() ?: emptyList()
+            )
         }
     }
 
@@ -210,6 +344,48 @@ class MainRepository @Inject constructor(
         }
 
     companion object {
+        private const val TAG = "MainRepository"
+
         private const val REQUEST_CODE_CHECK_UPDATE = 2001
+
+        // Keep observing the database across configuration changes
+        private const val UPDATE_INFO_STOP_TIMEOUT = 5000L
+
+        private const val CHANGELOG_PAGE_SIZE = 20
+
+        /**
+         * Turn free text into an fts query that matches changelogs containing
+         * words starting with each of the terms. Anything other than letters
+         * and digits separates terms, so the query syntax can't leak through.
+         */
+        private fun toFtsQuery(query: String): String? =
+            query.split(Regex("[^\\p{L}\\p{N}]+"))
+                .filter { it.isNotEmpty() }
+                .takeIf { it.isNotEmpty() }
+                ?.joinToString(" ") { "$it*" }
+
+        private fun ChangelogSync.toEntities() =
+            changelogs.map {
+                ChangelogEntity(
+                    name = it.name,
+                    sha = it.sha,
+                    date = it.date,
+                    changelog = it.content
+                )
+            }
+
+        private fun BuildInfoWithSources.toBuildInfo() =
+            BuildInfo(
+                buildInfo.version,
+                buildInfo.date,
+                buildInfo.preBuildIncremental,
+                buildInfo.url,
+                downloadSources.takeIf { it.isNotEmpty() }?.associate { it.name to it.url },
+                buildInfo.fileName,
+                buildInfo.fileSize,
+                buildInfo.sha512,
+                buildInfo.chunkSize,
+                buildInfo.chunkHashes,
+            )
     }
 }
\ No newline at end of file
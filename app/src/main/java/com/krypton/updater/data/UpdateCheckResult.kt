@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data
+
+sealed interface UpdateCheckResult {
+    /**
+     * The OTA info hasn't changed since the previous check,
+     * the saved [UpdateInfo] is still valid.
+     */
+    object NotModified : UpdateCheckResult
+
+    /**
+     * @property updateInfo the fetched [UpdateInfo], null if
+     *   OTA info is not available.
+     */
+    data class Updated(val updateInfo: UpdateInfo?) : UpdateCheckResult
+}
@@ -20,6 +20,8 @@ import android.content.Context
 import android.util.Log
 
 import com.krypton.updater.R
+import com.krypton.updater.data.retrofit.Content
+import com.krypton.updater.data.retrofit.OTAJsonContent
 
 import dagger.hilt.android.qualifiers.ApplicationContext
 
@@ -29,92 +31,155 @@ import java.util.Date
 import javax.inject.Inject
 import javax.inject.Singleton
 
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+
 @Singleton
 class UpdateChecker @Inject constructor(
     @ApplicationContext private val context: Context,
     private val githubApiHelper: GithubApiHelper,
 ) {
 
-    private var updateBuildDate = 0L
-
     /**
-     * Check for updates in github. This method should not
-     * be called from main thread.
+     * Check for updates in github. When [incremental] is true, the incremental
+     * and full OTA json are fetched concurrently. An applicable incremental
+     * update wins right away and the full OTA request is cancelled, otherwise
+     * the full OTA info is used.
      *
      * @param incremental whether to fetch incremental update.
-     * @return the fetch result as a [Result] of type [UpdateInfo].
+     * @param storedBuildInfo the [BuildInfo] saved by the previous check, if any.
+     * @return the fetch result as a [Result] of type [UpdateCheckResult].
      *   [UpdateInfo.Type] will indicate whether there is a new update or not.
      */
-    fun checkForUpdate(incremental: Boolean): Result<UpdateInfo?> {
-        val result = githubApiHelper.getBuildInfo(DeviceInfo.getDevice(), incremental)
-        if (result.isFailure) {
-            return if (incremental) {
-                // Fallback to full OTA hoping that it may work
-                checkForUpdate(false)
+    suspend fun checkForUpdate(
+        incremental: Boolean,
+        storedBuildInfo: BuildInfo?
+    ): Result<UpdateCheckResult> = coroutineScope {
+        val device = DeviceInfo.getDevice()
+        val fullFetch = async { githubApiHelper.getBuildInfo(device, false) }
+        if (incremental) {
+            val result = githubApiHelper.getBuildInfo(device, true)
+            val cachedContent = result.getOrNull()
+            val notModified = cachedContent?.describes(storedBuildInfo, true) == true
+            val buildInfo = if (notModified) {
+                storedBuildInfo
             } else {
-                Log.e(TAG, "Update check failed", result.exceptionOrNull())
-                Result.failure(
-                    result.exceptionOrNull()
-                        ?: Throwable(context.getString(R.string.update_check_failed))
+                cachedContent?.parseBuildInfo()
+            }
+            logD("incremental buildInfo = $buildInfo, notModified = $notModified")
+            if (buildInfo != null && isNewUpdate(buildInfo, true)) {
+                fullFetch.cancel()
+                return@coroutineScope Result.success(
+                    if (notModified) {
+                        UpdateCheckResult.NotModified
+                    } else {
+                        UpdateCheckResult.Updated(
+                            UpdateInfo(buildInfo = buildInfo, type = UpdateInfo.Type.NEW_UPDATE)
+                        )
+                    }
                 )
             }
+            // Fallback to full OTA hoping that it may work
+            result.exceptionOrNull()?.let {
+                Log.w(TAG, "Incremental update check failed", it)
+            }
         }
-        val otaJsonContent = result.getOrNull() ?: return Result.success(null)
-        logD("incremental = $incremental, otaJsonContent = $otaJsonContent")
-        val buildInfo = BuildInfo(
-            version = otaJsonContent.version,
-            date = otaJsonContent.date,
-            preBuildIncremental = otaJsonContent.preBuildIncremental,
-            url = otaJsonContent.url,
-            downloadSources = otaJsonContent.downloadSources,
-            fileName = otaJsonContent.fileName,
-            fileSize = otaJsonContent.fileSize,
-            sha512 = otaJsonContent.sha512,
-        )
-        updateBuildDate = buildInfo.date
-        val newUpdate = isNewUpdate(buildInfo, incremental)
-        return if (!newUpdate && incremental) {
-            checkForUpdate(false)
-        } else {
-            Result.success(
+        val result = fullFetch.await()
+        if (result.isFailure) {
+            Log.e(TAG, "Update check failed", result.exceptionOrNull())
+            return@coroutineScope Result.failure(
+                result.exceptionOrNull()
+                    ?: Throwable(context.getString(R.string.update_check_failed))
+            )
+        }
+        val cachedContent = result.getOrThrow()
+        if (cachedContent.describes(storedBuildInfo, false)) {
+            logD("OTA json not modified")
+            return@coroutineScope Result.success(UpdateCheckResult.NotModified)
+        }
+        val buildInfo = cachedContent.parseBuildInfo()
+            ?: return@coroutineScope Result.success(UpdateCheckResult.Updated(null))
+        logD("full buildInfo = $buildInfo")
+        Result.success(
+            UpdateCheckResult.Updated(
                 UpdateInfo(
                     buildInfo = buildInfo,
-                    changelog = if (newUpdate) getChangelog() else null,
-                    type = if (newUpdate) UpdateInfo.Type.NEW_UPDATE else UpdateInfo.Type.NO_UPDATE
+                    type = if (isNewUpdate(buildInfo, false)) {
+                        UpdateInfo.Type.NEW_UPDATE
+                    } else {
+                        UpdateInfo.Type.NO_UPDATE
+                    }
                 )
             )
-        }
+        )
     }
 
-    private fun getChangelog(): Map<Long, String?>? {
-        val result = githubApiHelper.getChangelogs(DeviceInfo.getDevice())
-        logD("getChangelog: result = $result")
+    /**
+     * Compare the changelogs in github against the saved ones. Only the
+     * changelog files that are new or whose git blob sha changed are
+     * downloaded.
+     *
+     * @param buildInfo the [BuildInfo] the changelogs are for, if any.
+     * @param storedChangelogs a [Map] of saved changelog file names to their sha.
+     * @return the [ChangelogSync] to apply on the saved changelogs,
+     *   null if the changelogs couldn't be listed.
+     */
+    suspend fun getChangelogSync(
+        buildInfo: BuildInfo?,
+        storedChangelogs: Map<String, String>
+    ): ChangelogSync? {
+        if (buildInfo == null || !isNewUpdate(buildInfo, buildInfo.preBuildIncremental != null)) {
+            return ChangelogSync(storedChangelogs.keys, emptyList())
+        }
+        val result = githubApiHelper.listChangelogs(DeviceInfo.getDevice())
+        logD("getChangelogSync: result = $result")
         if (result.isFailure) {
             Log.e(TAG, "Failed to get changelog", result.exceptionOrNull())
             return null
         }
-        val changelogMap = result.getOrNull()?.takeIf { it.isNotEmpty() } ?: run {
+        val contentList = result.getOrNull()?.takeIf { it.isNotEmpty() } ?: run {
             Log.w(TAG, "Empty changelog!")
-            return null
+            return ChangelogSync(storedChangelogs.keys, emptyList())
         }
-        val filteredMap = mutableMapOf<Long, String?>()
-        changelogMap.forEach { (name, content) ->
-            logD("filtering $name")
-            val date = getDateFromChangelogFileName(name)?.time ?: return@forEach
+        val filteredDates = mutableMapOf<Content, Long>()
+        contentList.forEach { content ->
+            logD("filtering ${content.name}")
+            val date = getDateFromChangelogFileName(content.name)?.time ?: return@forEach
             if (compareTillDay(
                     date,
                     SYSTEM_BUILD_DATE
                 ) < 0 /* Changelog is older than current build */
                 || compareTillDay(
                     date,
-                    updateBuildDate
+                    buildInfo.date
                 ) > 0 /* Changelog is newer than OTA */) {
                 logD("Skipping changelog since it doesn't satisfy constraints")
                 return@forEach
             }
-            filteredMap[date] = content
+            filteredDates[content] = date
+        }
+        val changedList = filteredDates.keys.filter { storedChangelogs[it.name] != it.sha }
+        logD("${changedList.size} of ${filteredDates.size} changelogs changed")
+        val fetchedChangelogs = if (changedList.isEmpty()) {
+            emptyMap()
+        } else {
+            githubApiHelper.fetchChangelogs(changedList)
         }
-        return filteredMap.toMap()
+        return ChangelogSync(
+            removed = storedChangelogs.keys - filteredDates.keys.map { it.name }.toSet(),
+            // Files that failed to download keep their saved version, if any,
+            // and are fetched again on the next check since the sha doesn't match.
+            changelogs = changedList.filter { fetchedChangelogs.containsKey(it.name) }.map {
+                ChangelogSync.Changelog(
+                    name = it.name,
+                    sha = it.sha,
+                    date = filteredDates.getValue(it),
+                    content = fetchedChangelogs[it.name]
+                )
+            }
+        )
     }
 
     companion object {
@@ -132,6 +197,35 @@ class UpdateChecker @Inject constructor(
             if (DEBUG) Log.d(TAG, msg)
         }
 
+        /**
+         * Whether the server confirmed that the json [storedBuildInfo] was
+         * saved from is unchanged, in which case there is no need to parse
+         * the cached copy again.
+         */
+        private fun CachedContent<*>.describes(storedBuildInfo: BuildInfo?, incremental: Boolean) =
+            notModified && storedBuildInfo != null &&
+                (storedBuildInfo.preBuildIncremental != null) == incremental
+
+        // Checks run on the main thread, parsing does not belong there
+        private suspend fun CachedContent<OTAJsonContent?>.parseBuildInfo(): BuildInfo? =
+            withContext(Dispatchers.Default) {
+                content?.toBuildInfo()
+            }
+
+        private fun OTAJsonContent.toBuildInfo() =
+            BuildInfo(
+                version = version,
+                date = date,
+                preBuildIncremental = preBuildIncremental,
+                url = url,
+                downloadSources = downloadSources?.takeIf { it.isNotEmpty() },
+                fileName = fileName,
+                fileSize = fileSize,
+                sha512 = sha512,
+                chunkSize = chunkSize,
+                chunkHashes = chunkHashes,
+            )
+
         private fun getDateFromChangelogFileName(name: String): Date? {
             return runCatching {
                 val dateStringList =
@@ -18,7 +18,6 @@ package com.krypton.updater.data
 
 data class UpdateInfo(
     val buildInfo: BuildInfo?,
-    val changelog: Map<Long, String?>?,
     val type: Type = Type.UNKNOWN,
 ) {
     enum class Type {
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.download
+
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A small pool of direct [ByteBuffer]s shared by the download
+ * and hashing paths, so that multi-GB transfers don't churn
+ * through a fresh 1 MiB array for every connection or file read.
+ */
+object BufferPool {
+    // 1 MiB. Not using DataUnit keeps the hashing path usable in local unit tests.
+    private const val BUFFER_SIZE = 1 shl 20
+
+    // Buffers beyond this count are left to the GC when released
+    private const val MAX_POOLED_BUFFERS = 8
+
+    private val buffers = ConcurrentLinkedQueue<ByteBuffer>()
+    private val pooledCount = AtomicInteger(0)
+
+    /**
+     * Get a cleared buffer of [BUFFER_SIZE] bytes. Must be given back
+     * with [release] once done.
+     */
+    fun acquire(): ByteBuffer {
+        val buffer = buffers.poll()?.also {
+            pooledCount.decrementAndGet()
+        } ?: ByteBuffer.allocateDirect(BUFFER_SIZE)
+        buffer.clear()
+        return buffer
+    }
+
+    fun release(buffer: ByteBuffer) {
+        if (pooledCount.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            buffers.offer(buffer)
+        } else {
+            pooledCount.decrementAndGet()
+        }
+    }
+
+    /**
+     * Run [block] with a buffer from the pool and release it afterwards.
+     */
+    inline fun <T> withBuffer(block: (ByteBuffer) -> T): T {
+        val buffer = acquire()
+        try {
+            return block(buffer)
+        } finally {
+            release(buffer)
+        }
+    }
+}
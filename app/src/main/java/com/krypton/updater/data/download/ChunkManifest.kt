@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.download
+
+import android.util.Log
+
+import java.io.File
+import java.io.IOException
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+
+import kotlin.math.min
+
+/**
+ * SHA-256 hashes of consecutive, equally sized chunks of a file.
+ * Allows verifying a file piece by piece so that only the corrupt
+ * chunks have to be downloaded again.
+ *
+ * @property fileSize the size of the file in bytes.
+ * @property chunkSize the size of every chunk except maybe the last one.
+ * @property hashes the SHA-256 hash of every chunk, in order.
+ */
+class ChunkManifest(
+    val fileSize: Long,
+    val chunkSize: Long,
+    private val hashes: List<String>,
+) {
+
+    val chunkCount: Int
+        get() = hashes.size
+
+    /**
+     * Whether this manifest actually describes a file of [fileSize] bytes.
+     */
+    val isValid: Boolean
+        get() = chunkSize > 0 && hashes.size.toLong() == (fileSize + chunkSize - 1) / chunkSize
+
+    fun chunkStart(index: Int): Long = index * chunkSize
+
+    fun chunkEnd(index: Int): Long = min(chunkStart(index) + chunkSize, fileSize)
+
+    /**
+     * Check a digest computed over an entire chunk.
+     *
+     * @param index the index of the chunk.
+     * @param digest a SHA-256 [MessageDigest] fed with the chunk.
+     * @return true if the chunk is intact.
+     */
+    fun matches(index: Int, digest: MessageDigest): Boolean =
+        toHex(digest.digest()).equals(hashes[index], ignoreCase = true)
+
+    /**
+     * Read a chunk from the file and verify it.
+     *
+     * @param file the file to verify.
+     * @param index the index of the chunk.
+     * @return true if the chunk is intact.
+     */
+    fun verifyChunk(file: File, index: Int): Boolean {
+        val digest = newChunkDigest()
+        return try {
+            FileChannel.open(file.toPath(), StandardOpenOption.READ).use {
+                updateDigest(it, digest, chunkStart(index), chunkEnd(index))
+            }
+            matches(index, digest)
+        } catch (e: IOException) {
+            Log.e(TAG, "IOException while verifying chunk $index, ${e.message}")
+            false
+        }
+    }
+
+    /**
+     * Verify every chunk of the file.
+     *
+     * @param file the file to verify.
+     * @return the indices of the chunks that do not match.
+     */
+    fun findCorruptChunks(file: File): List<Int> =
+        (0 until chunkCount).filterNot { verifyChunk(file, it) }
+
+    /**
+     * Create a [DownloadCheckpoint] that resumes a complete but corrupt
+     * download by fetching just the given chunks again.
+     *
+     * @param sha512 the SHA-512 hash of the file.
+     * @param corruptChunks the indices of the chunks to download again.
+     */
+    fun createRepairCheckpoint(sha512: String, corruptChunks: Collection<Int>): DownloadCheckpoint =
+        DownloadCheckpoint.newBuilder()
+            .setFileSize(fileSize)
+            .setSha512(sha512)
+            .addAllSegments((0 until chunkCount).map {
+                val corrupt = corruptChunks.contains(it)
+                DownloadCheckpoint.Segment.newBuilder()
+                    .setStart(chunkStart(it))
+                    .setEnd(chunkEnd(it))
+                    .setDownloaded(if (corrupt) 0 else chunkEnd(it) - chunkStart(it))
+                    .setVerified(!corrupt)
+                    .build()
+            })
+            .build()
+
+    companion object {
+        private const val TAG = "ChunkManifest"
+
+        fun newChunkDigest(): MessageDigest = MessageDigest.getInstance("SHA-256")
+
+        /**
+         * Feed the bytes of [channel] in the range [start, end) into [digest].
+         */
+        fun updateDigest(channel: FileChannel, digest: MessageDigest, start: Long, end: Long) {
+            BufferPool.withBuffer { buffer ->
+                var position = start
+                while (position < end) {
+                    buffer.clear()
+                    buffer.limit(min(buffer.capacity().toLong(), end - position).toInt())
+                    val bytesRead = channel.read(buffer, position)
+                    if (bytesRead < 0) throw IOException("Unexpected end of file at $position")
+                    buffer.flip()
+                    digest.update(buffer)
+                    position += bytesRead
+                }
+            }
+        }
+
+        private fun toHex(bytes: ByteArray): String {
+            val builder = StringBuilder(bytes.size * 2)
+            bytes.forEach {
+                builder.append(String.format("%02x", it))
+            }
+            return builder.toString()
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.download
+
+import android.content.Context
+import android.system.ErrnoException
+import android.system.Os
+import android.util.Log
+
+import com.krypton.updater.data.SavedState
+import com.krypton.updater.data.savedStateDataStore
+
+import dagger.hilt.android.qualifiers.ApplicationContext
+
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+import javax.inject.Inject
+import javax.inject.Singleton
+
+import kotlinx.coroutines.flow.first
+
+/**
+ * Remembers the SHA-512 hash of the downloaded file along with its path, size,
+ * modification time and inode, so that an unchanged file doesn't have to be
+ * hashed again every time the app starts.
+ */
+@Singleton
+class DigestCache @Inject constructor(
+    @ApplicationContext context: Context,
+) {
+
+    private val savedStateDataStore = context.savedStateDataStore
+
+    /**
+     * Check whether [file] was verified against [sha512] and
+     * hasn't been touched since.
+     */
+    suspend fun isVerified(file: File, sha512: String): Boolean {
+        val cachedDigest = savedStateDataStore.data.first().downloadDigest
+        val fileDigest = createDigest(file, sha512) ?: return false
+        return cachedDigest == fileDigest
+    }
+
+    /**
+     * Record that [file] matches [sha512].
+     */
+    suspend fun put(file: File, sha512: String) {
+        val fileDigest = createDigest(file, sha512) ?: return
+        savedStateDataStore.updateData {
+            it.toBuilder()
+                .setDownloadDigest(fileDigest)
+                .build()
+        }
+    }
+
+    suspend fun clear() {
+        savedStateDataStore.updateData {
+            it.toBuilder()
+                .clearDownloadDigest()
+                .build()
+        }
+    }
+
+    private fun createDigest(file: File, sha512: String): SavedState.FileDigest? {
+        val stat = try {
+            Os.stat(file.absolutePath)
+        } catch (e: ErrnoException) {
+            Log.e(TAG, "Failed to stat ${file.absolutePath}, ${e.message}")
+            return null
+        }
+        return SavedState.FileDigest.newBuilder()
+            .setPath(file.absolutePath)
+            .setSize(stat.st_size)
+            .setMtime(TimeUnit.SECONDS.toNanos(stat.st_mtim.tv_sec) + stat.st_mtim.tv_nsec)
+            .setInode(stat.st_ino)
+            .setSha512(sha512)
+            .build()
+    }
+
+    companion object {
+        private const val TAG = "DigestCache"
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.download
+
+import android.util.AtomicFile
+import android.util.Log
+
+import java.io.File
+import java.io.IOException
+
+/**
+ * Persists a [DownloadCheckpoint] next to a partially downloaded file
+ * so that the download can be resumed after process death.
+ *
+ * @param downloadFile the file being downloaded.
+ */
+class DownloadCheckpointFile(downloadFile: File) {
+
+    private val atomicFile = AtomicFile(
+        File(downloadFile.parentFile, "${downloadFile.name}$CHECKPOINT_SUFFIX")
+    )
+
+    /**
+     * Read the saved checkpoint.
+     *
+     * @return the saved [DownloadCheckpoint], null if there is none
+     *   or if it could not be parsed.
+     */
+    @Synchronized
+    fun read(): DownloadCheckpoint? {
+        if (!atomicFile.baseFile.isFile) return null
+        return try {
+            atomicFile.openRead().use { DownloadCheckpoint.parseFrom(it) }
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to read checkpoint", e)
+            null
+        }
+    }
+
+    /**
+     * Atomically replace the saved checkpoint.
+     *
+     * @param checkpoint the [DownloadCheckpoint] to save.
+     */
+    @Synchronized
+    fun write(checkpoint: DownloadCheckpoint) {
+        val outStream = try {
+            atomicFile.startWrite()
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to open checkpoint for writing", e)
+            return
+        }
+        try {
+            checkpoint.writeTo(outStream)
+            atomicFile.finishWrite(outStream)
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to write checkpoint", e)
+            atomicFile.failWrite(outStream)
+        }
+    }
+
+    /**
+     * Delete the saved checkpoint.
+     */
+    @Synchronized
+    fun delete() {
+        atomicFile.delete()
+    }
+
+    companion object {
+        private const val TAG = "DownloadCheckpointFile"
+
+        private const val CHECKPOINT_SUFFIX = ".checkpoint"
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.download
+
+import android.util.Log
+
+import com.krypton.updater.data.FileCopyStatus
+import com.krypton.updater.data.FileExportManager
+import com.krypton.updater.data.update.OTAFileManager
+
+import java.io.File
+
+import javax.inject.Inject
+import javax.inject.Singleton
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.runInterruptible
+import kotlinx.coroutines.withContext
+
+/**
+ * Copies a finished download to the export directory and, when needed,
+ * stages it in the ota package dir. Both copies are made with a single
+ * read of the downloaded file through [FanOutCopier].
+ */
+@Singleton
+class DownloadFileCopier @Inject constructor(
+    private val fileExportManager: FileExportManager,
+    private val otaFileManager: OTAFileManager,
+) {
+
+    /**
+     * Status of the copy to the export directory.
+     */
+    val exportStatus = Channel<FileCopyStatus>(Channel.CONFLATED)
+
+    /**
+     * Copy the downloaded [file] to all of it's destinations.
+     *
+     * @param file the downloaded file.
+     * @param sha512 the expected SHA-512 hash of [file].
+     * @param stage whether the file has to be staged as [OTAFileManager.otaFile].
+     * @param onStagingProgress called with the progress of staging in percentage.
+     * @return a [Result] representing whether the file was staged,
+     *   null if [stage] is false.
+     */
+    suspend fun copy(
+        file: File,
+        sha512: String,
+        stage: Boolean,
+        onStagingProgress: (Float) -> Unit = {},
+    ): Result<Unit>? {
+        logD("copy, file = ${file.absolutePath}, stage = $stage")
+        val exportSinkResult = withContext(Dispatchers.IO) {
+            fileExportManager.createExportSink(file.name, sha512)
+        }
+        val exportSink = exportSinkResult.getOrNull()
+        when {
+            exportSinkResult.isFailure -> exportStatus.send(
+                FileCopyStatus.Failure(exportSinkResult.exceptionOrNull()?.localizedMessage)
+            )
+            exportSink == null -> exportStatus.send(FileCopyStatus.Success)
+            else -> exportStatus.send(FileCopyStatus.Copying())
+        }
+
+        var stagingResult: Result<Unit>? = null
+        var stagingSink: FanOutCopier.Sink? = null
+        if (stage) {
+            // A hardlink costs nothing, the copy is only a fallback
+            val linked = withContext(Dispatchers.IO) {
+                otaFileManager.linkFile(file)
+            }
+            if (linked) {
+                stagingResult = Result.success(Unit)
+            } else {
+                val stagingSinkResult = withContext(Dispatchers.IO) {
+                    otaFileManager.createStagingSink()
+                }
+                stagingSinkResult.onFailure {
+                    stagingResult = Result.failure(it)
+                }
+                stagingSink = stagingSinkResult.getOrNull()
+            }
+        }
+
+        val sinks = listOfNotNull(exportSink, stagingSink)
+        if (sinks.isEmpty()) return stagingResult
+        val results = runInterruptible(Dispatchers.IO) {
+            FanOutCopier.copy(file, sha512, sinks) { index, progress ->
+                when (sinks[index]) {
+                    exportSink -> exportStatus.trySend(FileCopyStatus.Copying(progress))
+                    stagingSink -> onStagingProgress(progress)
+                }
+            }
+        }
+        if (exportSink != null) {
+            val exportResult = results[sinks.indexOf(exportSink)]
+            if (exportResult.isSuccess) {
+                exportStatus.send(FileCopyStatus.Success)
+            } else {
+                exportStatus.send(FileCopyStatus.Failure(exportResult.exceptionOrNull()?.localizedMessage))
+            }
+        }
+        if (stagingSink != null) {
+            stagingResult = results[sinks.indexOf(stagingSink)]
+        }
+        return stagingResult
+    }
+
+    companion object {
+        private const val TAG = "DownloadFileCopier"
+        private val DEBUG: Boolean
+            get() = Log.isLoggable(TAG, Log.DEBUG)
+
+        private fun logD(msg: String) {
+            if (DEBUG) Log.d(TAG, msg)
+        }
+    }
+}
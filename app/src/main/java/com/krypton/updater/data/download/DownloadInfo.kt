@@ -18,14 +18,20 @@ package com.krypton.updater.data.download
 
 data class DownloadInfo(
     val url: String,
+    val mirrors: List<String>?,
     val name: String,
     val size: Long,
     val sha512: String,
+    val chunkSize: Long?,
+    val chunkHashes: List<String>?,
 ) {
     companion object {
         const val URL = "url"
+        const val MIRRORS = "mirrors"
         const val FILE_NAME = "file_name"
         const val FILE_SIZE = "file_size"
         const val SHA_512 = "sha_512"
+        const val CHUNK_SIZE = "chunk_size"
+        const val CHUNK_SHA_256 = "chunk_sha_256"
     }
 }
\ No newline at end of file
@@ -21,9 +21,14 @@ import android.app.job.JobScheduler
 import android.content.ComponentName
 import android.content.Context
 import android.os.Bundle
+import android.os.storage.StorageManager
+import android.util.DataUnit
 import android.util.Log
 
 import com.krypton.updater.R
+import com.krypton.updater.data.update.OTAFileManager
+import com.krypton.updater.data.update.PreflightChecker
+import com.krypton.updater.di.DownloadHttpClient
 
 import dagger.hilt.android.qualifiers.ApplicationContext
 
@@ -36,25 +41,54 @@ import javax.inject.Singleton
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
 
+import okhttp3.OkHttpClient
+
 @Singleton
 class DownloadManager @Inject constructor(
-    @ApplicationContext context: Context,
+    @ApplicationContext private val context: Context,
+    @DownloadHttpClient private val okHttpClient: OkHttpClient,
+    otaFileManager: OTAFileManager,
+    private val digestCache: DigestCache,
+    private val preflightChecker: PreflightChecker,
 ) {
     private val jobScheduler: JobScheduler by lazy {
         context.getSystemService(JobScheduler::class.java)
     }
+    private val storageManager: StorageManager by lazy {
+        context.getSystemService(StorageManager::class.java)
+    }
 
     private val downloadServiceComponent =
         ComponentName(context.packageName, context.getString(R.string.download_service))
     private val retryInterval =
         context.resources.getInteger(R.integer.minimum_download_retry_interval).toLong()
+    private val segmentCount = context.resources.getInteger(R.integer.download_segment_count)
+    private val minMirrorThroughput =
+        DataUnit.KIBIBYTES.toBytes(
+            context.resources.getInteger(R.integer.mirror_min_throughput).toLong()
+        )
 
-    private val cacheDir = context.cacheDir
+    /**
+     * Directory updates are downloaded to. Downloading into the OTA package
+     * dir lets [OTAFileManager.linkFile] stage the update without a copy.
+     */
+    val downloadDir: File =
+        if (context.resources.getBoolean(R.bool.download_to_ota_dir) &&
+            otaFileManager.downloadDir.isDirectory
+        ) {
+            otaFileManager.downloadDir
+        } else {
+            context.cacheDir
+        }
 
     private var downloadInfo: DownloadInfo? = null
 
     var downloadFile: File? = null
         private set
+
+    // Expected SHA-512 hash of [downloadFile]
+    var downloadSha512: String? = null
+        private set
     val downloadFileName: String?
         get() = downloadFile?.name
 
@@ -95,10 +129,12 @@ class DownloadManager @Inject constructor(
     suspend fun runWorker(downloadInfo: Bundle) {
         logD("runWorker, downloadState = ${downloadState.value}")
 
-        downloadFile = File(cacheDir, downloadInfo.getString(DownloadInfo.FILE_NAME)!!)
+        downloadFile = File(downloadDir, downloadInfo.getString(DownloadInfo.FILE_NAME)!!)
+        downloadSha512 = downloadInfo.getString(DownloadInfo.SHA_512)
 
         val urlResult = runCatching {
-            URL(downloadInfo.getString(DownloadInfo.URL))
+            downloadInfo.getStringArray(DownloadInfo.MIRRORS)?.map { URL(it) }
+                ?: listOf(URL(downloadInfo.getString(DownloadInfo.URL)))
         }
         if (urlResult.isFailure) {
             val exception = urlResult.exceptionOrNull()
@@ -108,12 +144,23 @@ class DownloadManager @Inject constructor(
         }
         val fileSize = downloadInfo.getLong(DownloadInfo.FILE_SIZE)
         val sha512 = downloadInfo.getString(DownloadInfo.SHA_512)!!
+        val chunkManifest = downloadInfo.getStringArray(DownloadInfo.CHUNK_SHA_256)?.let {
+            createChunkManifest(fileSize, downloadInfo.getLong(DownloadInfo.CHUNK_SIZE), it.toList())
+        }
         val downloadWorker = DownloadWorker(
+            okHttpClient,
+            storageManager,
             downloadFile!!,
             urlResult.getOrThrow(),
             fileSize,
             sha512,
-        )
+            segmentCount,
+            chunkManifest,
+            minMirrorThroughput,
+        ) {
+            // Costs a few KB, unlike finding out after the download
+            preflightChecker.check(it.toString())
+        }
         logD("starting worker")
         downloadWorker.run {
             _downloadState.value = it
@@ -121,6 +168,9 @@ class DownloadManager @Inject constructor(
                 Log.e(TAG, "Download failed", it.exception)
             }
         }
+        if (downloadState.value is DownloadState.Finished) {
+            digestCache.put(downloadFile!!, sha512)
+        }
     }
 
     /**
@@ -143,6 +193,7 @@ class DownloadManager @Inject constructor(
     suspend fun reset() {
         _downloadState.emit(DownloadState.Idle)
         downloadFile = null
+        downloadSha512 = null
         downloadInfo = null
     }
 
@@ -157,37 +208,100 @@ class DownloadManager @Inject constructor(
             .build()
 
     private fun buildExtras(downloadInfo: DownloadInfo) =
-        Bundle(4).apply {
+        Bundle(7).apply {
             putString(DownloadInfo.URL, downloadInfo.url)
+            downloadInfo.mirrors?.let {
+                putStringArray(DownloadInfo.MIRRORS, it.toTypedArray())
+            }
             putString(DownloadInfo.FILE_NAME, downloadInfo.name)
             putString(DownloadInfo.SHA_512, downloadInfo.sha512)
             putLong(DownloadInfo.FILE_SIZE, downloadInfo.size)
+            if (downloadInfo.chunkSize != null && downloadInfo.chunkHashes != null) {
+                putLong(DownloadInfo.CHUNK_SIZE, downloadInfo.chunkSize)
+                putStringArray(DownloadInfo.CHUNK_SHA_256, downloadInfo.chunkHashes.toTypedArray())
+            }
         }
 
+    private fun createChunkManifest(
+        size: Long,
+        chunkSize: Long?,
+        chunkHashes: List<String>?,
+    ): ChunkManifest? {
+        if (chunkSize == null || chunkHashes == null) return null
+        return ChunkManifest(size, chunkSize, chunkHashes).takeIf { it.isValid }
+            ?: run {
+                Log.w(TAG, "Ignoring chunk manifest that does not match the file")
+                null
+            }
+    }
+
+    /**
+     * Restore the finished state if the downloaded file is still intact.
+     * The file is only hashed again if it changed since it was last
+     * verified, or if [forceRehash] is true. If it is missing or corrupt,
+     * the state is set to [DownloadState.Failed] so that the user is told
+     * to download it again.
+     *
+     * @return true if the file is intact.
+     */
     suspend fun restoreDownloadState(
         name: String,
         size: Long,
         sha512: String,
-    ) {
+        chunkSize: Long?,
+        chunkHashes: List<String>?,
+        forceRehash: Boolean = false,
+    ): Boolean {
         logD("restoring state, name = $name, size = $size, sha512 = $sha512")
-        val file = File(cacheDir, name)
-        if (file.isFile) {
-            if (file.length() != size) {
-                Log.w(TAG, "File size does not match, deleting")
-                file.delete()
-                return
-            }
-            val hashMatch = HashVerifier.verifyHash(file, sha512)
-            if (!hashMatch) {
+        val file = File(downloadDir, name)
+        if (!file.isFile) {
+            Log.w(TAG, "File does not exist")
+            failRestore()
+            return false
+        }
+        if (file.length() != size) {
+            Log.w(TAG, "File size does not match, deleting")
+            file.delete()
+            digestCache.clear()
+            failRestore()
+            return false
+        }
+        if (!forceRehash && digestCache.isVerified(file, sha512)) {
+            logD("file unchanged since last verification")
+        } else if (HashVerifier.verifyHash(file, sha512)) {
+            digestCache.put(file, sha512)
+        } else {
+            digestCache.clear()
+            val chunkManifest = createChunkManifest(size, chunkSize, chunkHashes)
+            if (chunkManifest == null) {
                 Log.w(TAG, "File hash does not match, deleting")
                 file.delete()
-                return
-            } else {
-                logD("updating state")
-                downloadFile = file
-                _downloadState.emit(DownloadState.Finished)
+                failRestore()
+                return false
             }
+            // Keep the intact chunks around, the next download
+            // only has to fetch the corrupt ones.
+            val corruptChunks = chunkManifest.findCorruptChunks(file)
+            Log.w(TAG, "File hash does not match, corrupt chunks = $corruptChunks")
+            DownloadCheckpointFile(file).write(
+                chunkManifest.createRepairCheckpoint(sha512, corruptChunks)
+            )
+            failRestore()
+            return false
         }
+        logD("updating state")
+        downloadFile = file
+        downloadSha512 = sha512
+        _downloadState.emit(DownloadState.Finished)
+        return true
+    }
+
+    private suspend fun failRestore() {
+        downloadFile = null
+        downloadSha512 = null
+        _downloadState.emit(
+            DownloadState.Failed(Throwable(context.getString(R.string.downloaded_file_missing_or_corrupt)))
+        )
     }
 
     companion object {
@@ -21,7 +21,6 @@ import android.os.Bundle
 import android.util.Log
 
 import com.krypton.updater.data.BuildInfo
-import com.krypton.updater.data.FileExportManager
 import com.krypton.updater.data.FileCopyStatus
 import com.krypton.updater.data.room.AppDatabase
 import com.krypton.updater.data.savedStateDataStore
@@ -44,7 +43,7 @@ class DownloadRepository @Inject constructor(
     @ApplicationContext private val context: Context,
     private val applicationScope: CoroutineScope,
     private val downloadManager: DownloadManager,
-    private val fileExportManager: FileExportManager,
+    private val downloadFileCopier: DownloadFileCopier,
     appDatabase: AppDatabase,
 ) {
 
@@ -61,7 +60,13 @@ class DownloadRepository @Inject constructor(
     val restoringDownloadState: StateFlow<Boolean>
         get() = _restoringDownloadState
 
-    val fileCopyStatus = Channel<FileCopyStatus>(Channel.CONFLATED)
+    private val _verifyingDownload = MutableStateFlow(false)
+    val verifyingDownload: StateFlow<Boolean>
+        get() = _verifyingDownload
+
+    // The export is done along with staging, by UpdateRepository
+    val fileCopyStatus: Channel<FileCopyStatus>
+        get() = downloadFileCopier.exportStatus
 
     init {
         applicationScope.launch {
@@ -69,23 +74,6 @@ class DownloadRepository @Inject constructor(
             restoreDownloadState()
             downloadState.collect {
                 saveDownloadState(it)
-                if (it is DownloadState.Finished) {
-                    exportFile()
-                }
-            }
-        }
-    }
-
-    private suspend fun exportFile() {
-        downloadManager.downloadFile?.let { file ->
-            fileCopyStatus.send(FileCopyStatus.Copying)
-            val result = withContext(Dispatchers.IO) {
-                fileExportManager.copyToExportDir(file)
-            }
-            if (result.isSuccess) {
-                fileCopyStatus.send(FileCopyStatus.Success)
-            } else {
-                fileCopyStatus.send(FileCopyStatus.Failure(result.exceptionOrNull()?.localizedMessage))
             }
         }
     }
@@ -97,16 +85,23 @@ class DownloadRepository @Inject constructor(
      *   the file to download.
      * @param downloadSource the mirror to download from. If non empty,
      *   download url will be selected from [BuildInfo.downloadSources] map with
-     *   [downloadSource] as key or else, defaults to [BuildInfo.url] field.
+     *   [downloadSource] as key or else, the fastest of all the mirrors in
+     *   [BuildInfo.downloadSources] is picked and the download fails over to the
+     *   others if it becomes slow. Defaults to [BuildInfo.url] field if there
+     *   are no mirrors.
      */
     // TODO remove support for [BuildInfo.url] once we switch to A13
     fun triggerDownload(buildInfo: BuildInfo, downloadSource: String? = null) {
+        val mirrors = buildInfo.getMirrors(downloadSource)
         downloadManager.download(
             DownloadInfo(
-                downloadSource?.let { buildInfo.downloadSources!![it] } ?: buildInfo.url!!,
+                mirrors.first(),
+                mirrors.takeIf { it.size > 1 },
                 buildInfo.fileName,
                 buildInfo.fileSize,
-                buildInfo.sha512
+                buildInfo.sha512,
+                buildInfo.chunkSize,
+                buildInfo.chunkHashes,
             )
         )
     }
@@ -150,21 +145,55 @@ class DownloadRepository @Inject constructor(
             _restoringDownloadState.value = false
             return
         }
+        if (!restoreDownloadedFile(forceRehash = false)) {
+            // Otherwise every launch would hash the file again
+            clearDownloadFinished()
+        }
+        _restoringDownloadState.value = false
+    }
+
+    /**
+     * Hash the downloaded file again, regardless of whether it
+     * was verified before, and discard it if it is corrupt.
+     */
+    fun verifyDownload() {
+        applicationScope.launch {
+            logD("verifyDownload")
+            _verifyingDownload.value = true
+            if (!restoreDownloadedFile(forceRehash = true)) {
+                clearDownloadFinished()
+            }
+            _verifyingDownload.value = false
+        }
+    }
+
+    private suspend fun clearDownloadFinished() {
+        Log.w(TAG, "Downloaded file is missing or corrupt")
+        savedStateDatastore.updateData {
+            it.toBuilder()
+                .clearDownloadFinished()
+                .build()
+        }
+    }
+
+    private suspend fun restoreDownloadedFile(forceRehash: Boolean): Boolean =
         withContext(Dispatchers.IO) {
-            if (updateInfoDao.entityCount() == 0) {
+            val buildInfoEntity = updateInfoDao.getBuildInfo().firstOrNull()?.buildInfo
+            if (updateInfoDao.entityCount() == 0 || buildInfoEntity == null) {
                 logD("Update info database is empty")
-                return@withContext
+                downloadManager.reset()
+                return@withContext false
             }
-            val buildInfoEntity = updateInfoDao.getBuildInfo().firstOrNull() ?: return@withContext
             logD("restoring state")
             downloadManager.restoreDownloadState(
                 buildInfoEntity.fileName,
                 buildInfoEntity.fileSize,
                 buildInfoEntity.sha512,
+                buildInfoEntity.chunkSize,
+                buildInfoEntity.chunkHashes,
+                forceRehash,
             )
         }
-        _restoringDownloadState.value = false
-    }
 
     suspend fun resetState() {
         downloadManager.reset()
@@ -175,6 +204,9 @@ class DownloadRepository @Inject constructor(
             context.cacheDir.listFiles()?.forEach {
                 it.delete()
             }
+            downloadManager.downloadDir.listFiles()?.forEach {
+                it.delete()
+            }
         }
     }
 
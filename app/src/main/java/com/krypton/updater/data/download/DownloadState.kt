@@ -19,7 +19,24 @@ package com.krypton.updater.data.download
 sealed interface DownloadState {
     object Idle : DownloadState
     object Waiting : DownloadState
-    data class Downloading(val progress: Float) : DownloadState
+
+    /**
+     * @property downloadedBytes number of bytes downloaded so far.
+     * @property totalBytes size of the file in bytes.
+     * @property bytesPerSecond recent download speed.
+     * @property etaMillis estimated time left in ms, null if unknown.
+     */
+    data class Downloading(
+        val downloadedBytes: Long,
+        val totalBytes: Long,
+        val bytesPerSecond: Long,
+        val etaMillis: Long?,
+    ) : DownloadState {
+        // Download progress in percentage
+        val progress: Float
+            get() = if (totalBytes > 0) (downloadedBytes * 100f) / totalBytes else 0f
+    }
+
     data class Failed(val exception: Throwable?) : DownloadState
     object Finished : DownloadState
     object Retry : DownloadState
@@ -16,35 +16,96 @@
 
 package com.krypton.updater.data.download
 
+import android.os.SystemClock
+import android.os.storage.StorageManager
 import android.util.DataUnit
 import android.util.Log
 
+import com.google.protobuf.ByteString
+import com.krypton.updater.data.await
+
 import java.io.File
-import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.net.HttpURLConnection
 import java.net.URL
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
 
-import javax.net.ssl.HttpsURLConnection
+import kotlin.math.min
 
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.withTimeoutOrNull
 
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+
 /**
  * A worker whose job is to download the file from the given url.
+ * The file is split into byte ranges which are fetched over up to
+ * [segmentCount] parallel connections and written at their respective
+ * offsets. The SHA-512 hash is computed while the file is written,
+ * and checkpointed along with the download progress.
  *
+ * @property okHttpClient the client used for all requests. It should not
+ *   negotiate HTTP/2, which would put all segments on one connection.
+ * @property storageManager used to reserve space for the file.
  * @property downloadFile the file to which the content should be downloaded to.
- * @property url the url to downloaded from.
+ * @property mirrors the urls to download from. The fastest one is picked
+ *   and the download switches to another one when it fails or when the
+ *   throughput of a connection drops below [minMirrorThroughput].
  * @property fileSize the size of the file in bytes.
  * @property fileHash the SHA-512 hash of the file.
+ * @property segmentCount the maximum number of parallel connections to use.
+ * @property chunkManifest optional per chunk hashes of the file. If available,
+ *   every chunk is verified as soon as it is downloaded and only the chunks
+ *   that are corrupt are downloaded again.
+ * @property minMirrorThroughput minimum bytes per second a connection should
+ *   sustain before switching mirrors.
+ * @property preflightCheck optional check of the file on the mirror that is
+ *   picked, run once before a fresh download starts. The download fails
+ *   with the reason if it returns a failure.
  */
 class DownloadWorker(
+    private val okHttpClient: OkHttpClient,
+    private val storageManager: StorageManager,
     private val downloadFile: File,
-    private val url: URL,
+    mirrors: List<URL>,
     private val fileSize: Long,
     private val fileHash: String,
+    private val segmentCount: Int,
+    chunkManifest: ChunkManifest?,
+    private val minMirrorThroughput: Long,
+    private val preflightCheck: (suspend (URL) -> Result<Unit>)?,
 ) {
-    private var downloadedBytes = 0L
+    private val mirrorSelector = MirrorSelector(okHttpClient, mirrors)
+
+    // Dropped if the server can't serve the chunks individually
+    private var chunkManifest = chunkManifest
+
+    private val checkpointFile = DownloadCheckpointFile(downloadFile)
+
+    private val bytesSinceCheckpoint = AtomicLong(0)
+    private val segmentFailure = AtomicReference<Throwable?>(null)
+    private val progressTracker = ProgressTracker(fileSize)
+
+    private var segments = emptyList<Segment>()
+    private lateinit var hasher: PrefixHasher
+
+    // Shared by all connections, which only ever do positional writes
+    private lateinit var file: RandomAccessFile
+    private lateinit var fileChannel: FileChannel
 
     /**
      * Run the worker.
@@ -54,121 +115,446 @@ class DownloadWorker(
      */
     suspend fun run(updateCallback: (DownloadState) -> Unit) {
         logD("run")
-        var resume = downloadFile.isFile
-        if (resume) {
-            downloadedBytes = downloadFile.length()
-            logD("downloadedBytes = $downloadedBytes")
-            if (downloadedBytes == fileSize) {
-                logD("file already downloaded, verifying hash")
-                if (HashVerifier.verifyHash(downloadFile, fileHash)) {
-                    updateCallback(DownloadState.Finished)
-                    return
-                }
+        val checkpoint = checkpointFile.read()?.takeIf {
+            downloadFile.isFile && it.fileSize == fileSize && it.sha512 == fileHash
+        }
+        if (checkpoint == null && downloadFile.isFile && downloadFile.length() == fileSize) {
+            logD("file already downloaded, verifying hash")
+            if (HashVerifier.verifyHash(downloadFile, fileHash)) {
+                updateCallback(DownloadState.Finished)
+                return
+            }
+            if (chunkManifest == null) {
                 Log.w(TAG, "File is corrupt, deleting")
                 downloadFile.delete()
-                downloadedBytes = 0
-                resume = false
+            } else {
+                Log.w(TAG, "File is corrupt, repairing")
             }
         }
-        logD("resume = $resume")
-        val connectionResult = openConnection(if (resume) "$downloadedBytes-" else null)
-        if (connectionResult.isFailure) {
-            updateCallback(DownloadState.Failed(connectionResult.exceptionOrNull()))
+        val fileResult = runCatching { RandomAccessFile(downloadFile, "rw") }
+        if (fileResult.isFailure) {
+            Log.e(TAG, "Failed to open file", fileResult.exceptionOrNull())
+            updateCallback(DownloadState.Failed(fileResult.exceptionOrNull()))
             return
         }
-        val connection = connectionResult.getOrThrow()
-        logD("connection opened")
-        val downloadResult = runCatching {
-            FileOutputStream(downloadFile, resume).use { outStream ->
-                logD("output stream opened")
-                connection.inputStream.use { inStream ->
-                    logD("input stream opened")
-                    val buffer = ByteArray(DOWNLOAD_BUFFER_SIZE)
-                    var bytesRead = inStream.read(buffer)
-                    while (currentCoroutineContext().isActive && bytesRead >= 0) {
-                        outStream.write(buffer, 0, bytesRead)
-                        downloadedBytes += bytesRead
-                        updateCallback(DownloadState.Downloading((downloadedBytes * 100f) / fileSize))
-                        bytesRead = inStream.read(buffer)
-                    }
-                    logD("isActive = ${currentCoroutineContext().isActive}")
-                    outStream.flush()
+        fileResult.getOrThrow().use {
+            file = it
+            fileChannel = it.channel
+            download(checkpoint, updateCallback)
+        }
+    }
+
+    private suspend fun download(
+        checkpoint: DownloadCheckpoint?,
+        updateCallback: (DownloadState) -> Unit
+    ) {
+        if (checkpoint != null) {
+            segments = checkpoint.segmentsList.map {
+                Segment(it.start, it.end, it.downloaded, it.verified)
+            }
+            val digest = ResumableSha512.restoreState(checkpoint.digestState.toByteArray())
+                ?.takeIf { it.byteCount == checkpoint.hashedBytes }
+            hasher = PrefixHasher(fileChannel, digest ?: ResumableSha512(), ::contiguousEnd)
+        } else {
+            segments = createSegments()
+            hasher = PrefixHasher(fileChannel, ResumableSha512(), ::contiguousEnd)
+        }
+        logD("segments = $segments")
+        val preallocateResult = preallocate()
+        if (preallocateResult.isFailure) {
+            Log.e(TAG, "Failed to reserve space", preallocateResult.exceptionOrNull())
+            updateCallback(DownloadState.Failed(preallocateResult.exceptionOrNull()))
+            return
+        }
+        if (!isComplete()) {
+            mirrorSelector.rankMirrors()
+        }
+        // Resumed downloads passed it already, no need to check again on every retry
+        val preflightUrl = mirrorSelector.current
+        if (preflightCheck != null && preflightUrl != null &&
+            checkpoint == null && segments.none { it.downloaded > 0 }
+        ) {
+            val preflightResult = preflightCheck.invoke(preflightUrl)
+            if (preflightResult.isFailure) {
+                Log.e(TAG, "Update is not compatible", preflightResult.exceptionOrNull())
+                updateCallback(DownloadState.Failed(preflightResult.exceptionOrNull()))
+                return
+            }
+        }
+        var downloadResult = downloadSegments(updateCallback)
+        if (downloadResult.exceptionOrNull() is RangeNotSupportedException) {
+            Log.w(TAG, "Server does not support range requests, restarting download")
+            chunkManifest = null
+            segments = listOf(Segment(0, fileSize, 0, false))
+            hasher = PrefixHasher(fileChannel, ResumableSha512(), ::contiguousEnd)
+            downloadResult = downloadSegments(updateCallback)
+        }
+        val manifest = chunkManifest
+        if (downloadResult.isSuccess && manifest != null && isComplete() &&
+            hasher.finish() != fileHash
+        ) {
+            // Every chunk was verified while downloading, so whatever is corrupt
+            // got corrupted on disk. Look for it and download it again.
+            val corruptChunks = manifest.findCorruptChunks(downloadFile)
+            Log.w(TAG, "Hash mismatch, corrupt chunks = $corruptChunks")
+            if (corruptChunks.isNotEmpty()) {
+                corruptChunks.forEach {
+                    segments[it].downloaded = 0
+                    segments[it].verified = false
                 }
-                logD("input stream closed")
+                hasher = PrefixHasher(fileChannel, ResumableSha512(), ::contiguousEnd)
+                downloadResult = downloadSegments(updateCallback)
             }
-            logD("output stream closed")
-            connection.disconnect()
-            logD("connection disconnected")
         }
         if (downloadResult.isFailure) {
             Log.e(TAG, "Download failed", downloadResult.exceptionOrNull())
             updateCallback(DownloadState.Failed(downloadResult.exceptionOrNull()))
             return
         }
+        if (!isComplete()) {
+            updateCallback(DownloadState.Retry)
+            return
+        }
+        val hashMatch = hasher.finish() == fileHash
+        checkpointFile.delete()
         updateCallback(
-            if (downloadedBytes == fileSize) {
-                if (HashVerifier.verifyHash(downloadFile, fileHash))
-                    DownloadState.Finished
-                else
-                    DownloadState.Failed(Throwable("SHA-512 hash doesn't match. Possible download corruption!"))
+            if (hashMatch)
+                DownloadState.Finished
+            else
+                DownloadState.Failed(Throwable("SHA-512 hash doesn't match. Possible download corruption!"))
+        )
+    }
+
+    private fun isComplete() = segments.all { it.isComplete }
+
+    /**
+     * Reserve the full size of the file up front so that a full disk
+     * shows up right away and the file isn't fragmented by the
+     * out of order writes. Blocks already written are left untouched.
+     */
+    private fun preallocate(): Result<Unit> = runCatching {
+        if (file.length() >= fileSize) return@runCatching
+        logD("allocating $fileSize bytes")
+        storageManager.allocateBytes(file.fd, fileSize)
+    }
+
+    /**
+     * Split the file into segments. A partial file without a checkpoint
+     * was downloaded sequentially, so it is resumed as a single segment
+     * or as the chunks it covers if there is a [chunkManifest].
+     * Segments are handed out to the connections in ascending order so that
+     * the downloaded prefix, and hence the hash, stays close to the
+     * download progress.
+     */
+    private fun createSegments(): List<Segment> {
+        val existingBytes = if (downloadFile.isFile) min(downloadFile.length(), fileSize) else 0
+        val manifest = chunkManifest
+        if (manifest != null) {
+            return (0 until manifest.chunkCount).map {
+                val start = manifest.chunkStart(it)
+                val end = manifest.chunkEnd(it)
+                Segment(start, end, (existingBytes - start).coerceIn(0, end - start), false)
+            }
+        }
+        if (existingBytes > 0 || segmentCount <= 1) {
+            return listOf(Segment(0, fileSize, existingBytes, false))
+        }
+        return (0 until fileSize step SEGMENT_SIZE).map {
+            Segment(it, min(it + SEGMENT_SIZE, fileSize), 0, false)
+        }
+    }
+
+    /**
+     * Offset up to which the file is written contiguously starting from [from].
+     * With a [chunkManifest] only chunks that are verified are accounted for,
+     * so that corrupt bytes never end up in the hash.
+     */
+    private fun contiguousEnd(from: Long): Long {
+        var end = from
+        val verifyChunks = chunkManifest != null
+        for (segment in segments) {
+            if (segment.end <= end) continue
+            if (segment.start > end) break
+            if (verifyChunks) {
+                if (!segment.verified) break
+                end = segment.end
             } else {
-                DownloadState.Retry
+                end = segment.position
+                if (!segment.isComplete) break
             }
-        )
+        }
+        return end
     }
 
-    private suspend fun openConnection(range: String?): Result<HttpsURLConnection> {
-        val connectionResult = withTimeoutOrNull(CONNECTION_RETRY_TIMEOUT) {
-            while (isActive) {
-                val openResult = runCatching {
-                    url.openConnection() as HttpsURLConnection
+    private suspend fun downloadSegments(updateCallback: (DownloadState) -> Unit): Result<Unit> {
+        chunkManifest?.let { manifest ->
+            segments.forEachIndexed { index, segment ->
+                if (!segment.isComplete || segment.verified) return@forEachIndexed
+                if (manifest.verifyChunk(downloadFile, index)) {
+                    segment.verified = true
+                } else {
+                    Log.w(TAG, "Chunk $index is corrupt")
+                    segment.downloaded = 0
+                }
+            }
+        }
+        progressTracker.reset(segments.sumOf { it.downloaded }, updateCallback)
+        segmentFailure.set(null)
+        saveCheckpoint()
+        val pendingSegments = ConcurrentLinkedQueue(segments.filterNot { it.isComplete })
+        coroutineScope {
+            repeat(min(segmentCount.coerceAtLeast(1), pendingSegments.size)) {
+                launch(Dispatchers.IO) {
+                    while (isActive && segmentFailure.get() == null) {
+                        val segment = pendingSegments.poll() ?: break
+                        runCatching {
+                            downloadSegment(segment, updateCallback)
+                        }.onFailure {
+                            if (it is CancellationException) return@onFailure
+                            if (it is MirrorFailureException) {
+                                val permanent = it.cause is MirrorTooSlowException
+                                if (mirrorSelector.onFailure(it.url, permanent)) {
+                                    // Continue from where it left off on the current mirror
+                                    pendingSegments.add(segment)
+                                } else {
+                                    segmentFailure.compareAndSet(null, it.cause)
+                                }
+                            } else {
+                                segmentFailure.compareAndSet(null, it)
+                            }
+                        }
+                    }
                 }
-                if (openResult.isSuccess) {
-                    openResult.getOrElse { }
-                    val conn = openResult.getOrThrow()
-                    if (range != null) {
-                        conn.setRequestProperty("Range", "bytes=$range")
+            }
+        }
+        saveCheckpoint()
+        return segmentFailure.get()?.let { Result.failure(it) } ?: Result.success(Unit)
+    }
+
+    private suspend fun downloadSegment(
+        segment: Segment,
+        updateCallback: (DownloadState) -> Unit
+    ) {
+        val manifest = chunkManifest
+        if (manifest == null) {
+            fetchSegment(segment, null, updateCallback)
+            return
+        }
+        val index = (segment.start / manifest.chunkSize).toInt()
+        repeat(MAX_CHUNK_ATTEMPTS) {
+            val chunkDigest = ChunkManifest.newChunkDigest()
+            if (segment.downloaded > 0) {
+                ChunkManifest.updateDigest(fileChannel, chunkDigest, segment.start, segment.position)
+            }
+            fetchSegment(segment, chunkDigest, updateCallback)
+            if (!segment.isComplete) return
+            if (manifest.matches(index, chunkDigest)) {
+                segment.verified = true
+                hasher.advance()
+                return
+            }
+            Log.w(TAG, "Chunk $index is corrupt, downloading again")
+            progressTracker.onBytesDiscarded(segment.downloaded)
+            segment.downloaded = 0
+        }
+        throw IOException("Chunk $index is corrupt after $MAX_CHUNK_ATTEMPTS attempts")
+    }
+
+    /**
+     * Download the remaining bytes of a segment from the current mirror.
+     * Bytes are fed into [chunkDigest] if non null, or into the [hasher] otherwise.
+     *
+     * @throws RangeNotSupportedException if the mirror ignored the byte range.
+     * @throws MirrorFailureException if the mirror failed or was too slow.
+     */
+    private suspend fun fetchSegment(
+        segment: Segment,
+        chunkDigest: MessageDigest?,
+        updateCallback: (DownloadState) -> Unit
+    ) {
+        val url = mirrorSelector.current ?: throw IOException("No mirrors left to download from")
+        try {
+            fetchSegment(url, segment, chunkDigest, updateCallback)
+        } catch (e: RangeNotSupportedException) {
+            // Not a fault of the mirror, the download falls back to a single stream
+            throw e
+        } catch (e: IOException) {
+            throw MirrorFailureException(url, e)
+        }
+    }
+
+    private suspend fun fetchSegment(
+        url: URL,
+        segment: Segment,
+        chunkDigest: MessageDigest?,
+        updateCallback: (DownloadState) -> Unit
+    ) {
+        val response = openConnection(url, "${segment.position}-${segment.end - 1}").getOrElse {
+            throw IOException(it.message, it)
+        }
+        logD("connection opened for $segment from $url")
+        response.use {
+            if (segment.position > 0 && response.code != HttpURLConnection.HTTP_PARTIAL) {
+                throw RangeNotSupportedException()
+            }
+            val source = response.body!!.source()
+            BufferPool.withBuffer { buffer ->
+                var windowStartTime = SystemClock.elapsedRealtime()
+                var windowBytes = 0L
+                while (currentCoroutineContext().isActive &&
+                    segmentFailure.get() == null &&
+                    !segment.isComplete
+                ) {
+                    buffer.clear()
+                    buffer.limit(min(buffer.capacity().toLong(), segment.remaining).toInt())
+                    // Fill the buffer to keep the writes large
+                    while (buffer.hasRemaining()) {
+                        if (source.read(buffer) < 0) break
                     }
-                    val responseResult = runCatching { conn.responseCode }
-                    if (responseResult.isFailure) {
-                        Log.e(
-                            TAG,
-                            "Failed to get response code, error = " +
-                                    responseResult.exceptionOrNull()?.message
-                        )
-                        continue
+                    buffer.flip()
+                    val bytesRead = buffer.remaining()
+                    if (bytesRead == 0) break
+                    var writePosition = segment.position
+                    while (buffer.hasRemaining()) {
+                        writePosition += fileChannel.write(buffer, writePosition)
                     }
-                    val responseCode =
-                        responseResult.getOrDefault(HttpsURLConnection.HTTP_INTERNAL_ERROR)
-                    logD("response code = $responseCode")
-                    if (responseCode == HttpsURLConnection.HTTP_OK ||
-                        responseCode == HttpsURLConnection.HTTP_CREATED ||
-                        responseCode == HttpsURLConnection.HTTP_ACCEPTED ||
-                        responseCode == HttpsURLConnection.HTTP_PARTIAL
-                    ) {
-                        return@withTimeoutOrNull Result.success(conn)
+                    buffer.rewind()
+                    if (chunkDigest != null) {
+                        chunkDigest.update(buffer)
                     } else {
-                        Log.e(TAG, "Connection failed with response code $responseCode")
-                        runCatching { conn.responseMessage }.onSuccess {
-                            Log.e(TAG, "Response message = $it")
+                        hasher.onWrite(segment.position, buffer)
+                    }
+                    segment.downloaded += bytesRead
+                    progressTracker.onBytesDownloaded(bytesRead.toLong(), updateCallback)
+                    if (bytesSinceCheckpoint.addAndGet(bytesRead.toLong()) >= CHECKPOINT_INTERVAL) {
+                        bytesSinceCheckpoint.set(0)
+                        saveCheckpoint()
+                    }
+                    windowBytes += bytesRead
+                    val elapsed = SystemClock.elapsedRealtime() - windowStartTime
+                    if (elapsed >= THROUGHPUT_WINDOW) {
+                        val throughput = windowBytes * 1000 / elapsed
+                        if (throughput < minMirrorThroughput && mirrorSelector.hasAlternative(url)) {
+                            throw MirrorTooSlowException(throughput)
                         }
+                        windowStartTime = SystemClock.elapsedRealtime()
+                        windowBytes = 0
                     }
                 }
             }
+        }
+        logD("connection closed for $segment")
+    }
+
+    private fun saveCheckpoint() {
+        val (hashedBytes, digestState) = hasher.saveState()
+        checkpointFile.write(
+            DownloadCheckpoint.newBuilder()
+                .setFileSize(fileSize)
+                .setSha512(fileHash)
+                .addAllSegments(segments.map {
+                    DownloadCheckpoint.Segment.newBuilder()
+                        .setStart(it.start)
+                        .setEnd(it.end)
+                        .setDownloaded(it.downloaded)
+                        .setVerified(it.verified)
+                        .build()
+                })
+                .setHashedBytes(hashedBytes)
+                .setDigestState(ByteString.copyFrom(digestState))
+                .build()
+        )
+    }
+
+    private suspend fun openConnection(url: URL, range: String): Result<Response> {
+        val request = Request.Builder()
+            .url(url)
+            .header("Range", "bytes=$range")
+            .build()
+        val connectionResult = withTimeoutOrNull(CONNECTION_RETRY_TIMEOUT) {
+            while (isActive) {
+                val responseResult = runCatching {
+                    okHttpClient.newCall(request).await()
+                }
+                if (responseResult.isFailure) {
+                    Log.e(
+                        TAG,
+                        "Failed to get response, error = " +
+                                responseResult.exceptionOrNull()?.message
+                    )
+                    delay(CONNECTION_RETRY_DELAY)
+                    continue
+                }
+                val response = responseResult.getOrThrow()
+                logD("response code = ${response.code}, protocol = ${response.protocol}")
+                if (response.isSuccessful) {
+                    return@withTimeoutOrNull Result.success(response)
+                } else {
+                    Log.e(TAG, "Connection failed with response code ${response.code}")
+                    Log.e(TAG, "Response message = ${response.message}")
+                    response.close()
+                    delay(CONNECTION_RETRY_DELAY)
+                }
+            }
             null
         }
         return connectionResult
             ?: Result.failure(Throwable("Timeout while establishing connection, retry"))
     }
 
+    /**
+     * A byte range of the file, [start] inclusive and [end] exclusive.
+     */
+    private class Segment(
+        val start: Long,
+        val end: Long,
+        @Volatile var downloaded: Long,
+        @Volatile var verified: Boolean,
+    ) {
+        val position: Long
+            get() = start + downloaded
+
+        val remaining: Long
+            get() = end - position
+
+        val isComplete: Boolean
+            get() = position >= end
+
+        override fun toString() =
+            "Segment[$start, $end), downloaded = $downloaded, verified = $verified"
+    }
+
+    private class RangeNotSupportedException : IOException("Server does not support range requests")
+
+    private class MirrorTooSlowException(
+        throughput: Long,
+    ) : IOException("Throughput of $throughput B/s is too low")
+
+    private class MirrorFailureException(
+        val url: URL,
+        override val cause: IOException,
+    ) : IOException("Download from $url failed", cause)
+
     companion object {
         private const val TAG = "DownloadWorker"
         private val DEBUG: Boolean
             get() = Log.isLoggable(TAG, Log.DEBUG)
 
-        private val DOWNLOAD_BUFFER_SIZE = DataUnit.MEBIBYTES.toBytes(1).toInt()
+        // Long enough to cover the connect timeout of the client
+        private val CONNECTION_RETRY_TIMEOUT = TimeUnit.SECONDS.toMillis(20)
+        private val CONNECTION_RETRY_DELAY = TimeUnit.SECONDS.toMillis(1)
+
+        // Size of the byte range fetched by a single request
+        private val SEGMENT_SIZE = DataUnit.MEBIBYTES.toBytes(16)
+
+        // Duration over which the throughput of a connection is measured
+        private val THROUGHPUT_WINDOW = TimeUnit.SECONDS.toMillis(10)
+
+        // Number of times a corrupt chunk is downloaded before giving up
+        private const val MAX_CHUNK_ATTEMPTS = 3
 
-        private val CONNECTION_RETRY_TIMEOUT = TimeUnit.SECONDS.toMillis(5)
+        // Number of bytes downloaded before the progress is checkpointed
+        private val CHECKPOINT_INTERVAL = DataUnit.MEBIBYTES.toBytes(16)
 
         private fun logD(msg: String) {
             if (DEBUG) Log.d(TAG, msg)
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.download
+
+import android.util.Log
+
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.channels.WritableByteChannel
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+
+/**
+ * Copies a file to any number of destinations with a single read of the
+ * source, hashing it on the way. Independent copies of a multi-GB file
+ * would compete for flash bandwidth and page cache instead.
+ */
+object FanOutCopier {
+    private const val TAG = "FanOutCopier"
+
+    /**
+     * A destination of the copy.
+     *
+     * @property name name of the destination, used in logs.
+     * @property open opens the stream to write to.
+     * @property openForReadBack opens the written copy to hash it again,
+     *   null to skip reading it back.
+     * @property onFinished called with the result of the copy once the
+     *   stream is closed, to finalize or clean up the destination. Returns
+     *   the final result.
+     */
+    class Sink(
+        val name: String,
+        val open: () -> OutputStream,
+        val openForReadBack: (() -> InputStream)? = null,
+        val onFinished: (Result<Unit>) -> Result<Unit> = { it },
+    )
+
+    private class SinkWriter(val channel: WritableByteChannel) {
+        var bytesWritten = 0L
+        var lastProgress = -1
+        var error: Throwable? = null
+    }
+
+    /**
+     * Copy [source] to every sink. A failing sink does not stop the others.
+     * The data written hashes to [sha512] and all of it was written to every
+     * copy that succeeds. Copies of sinks with [Sink.openForReadBack] are also
+     * read back and hashed once closed, which catches short or corrupt writes
+     * to the destination. Should not be called from main thread.
+     *
+     * @param source the file to copy.
+     * @param sha512 the expected SHA-512 hash of [source].
+     * @param sinks the destinations.
+     * @param onProgress called with the index of a sink in [sinks]
+     *   and it's progress in percentage, whenever it changes.
+     * @return the result of each sink, in the order of [sinks].
+     */
+    fun copy(
+        source: File,
+        sha512: String,
+        sinks: List<Sink>,
+        onProgress: (Int, Float) -> Unit = { _, _ -> },
+    ): List<Result<Unit>> {
+        val size = source.length()
+        val writers = sinks.map { sink ->
+            try {
+                val stream = sink.open()
+                SinkWriter(
+                    if (stream is FileOutputStream) stream.channel else Channels.newChannel(stream)
+                )
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to open ${sink.name}", e)
+                null
+            }
+        }
+        val messageDigest = MessageDigest.getInstance("SHA-512")
+        try {
+            FileChannel.open(source.toPath(), StandardOpenOption.READ).use { channel ->
+                BufferPool.withBuffer { buffer ->
+                    while (channel.read(buffer) >= 0) {
+                        buffer.flip()
+                        messageDigest.update(buffer.duplicate())
+                        writers.forEachIndexed { index, writer ->
+                            if (writer == null || writer.error != null) return@forEachIndexed
+                            try {
+                                val data = buffer.duplicate()
+                                while (data.hasRemaining()) {
+                                    writer.bytesWritten += writer.channel.write(data)
+                                }
+                            } catch (e: IOException) {
+                                Log.e(TAG, "Failed to write to ${sinks[index].name}", e)
+                                writer.error = e
+                                return@forEachIndexed
+                            }
+                            val progress = if (size > 0) ((writer.bytesWritten * 100) / size).toInt() else 100
+                            if (progress != writer.lastProgress) {
+                                writer.lastProgress = progress
+                                onProgress(index, progress.toFloat())
+                            }
+                        }
+                        buffer.clear()
+                    }
+                }
+            }
+            val digest = HashVerifier.toHexString(messageDigest.digest())
+            if (digest != sha512) {
+                Log.e(TAG, "Hash of ${source.absolutePath} does not match, expected $sha512, got $digest")
+                val hashError = IOException("Hash of the source file does not match")
+                writers.forEach { it?.error = it?.error ?: hashError }
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to read ${source.absolutePath}", e)
+            writers.forEach { it?.error = it?.error ?: e }
+        } finally {
+            writers.forEachIndexed { index, writer ->
+                try {
+                    writer?.channel?.close()
+                } catch (e: IOException) {
+                    Log.e(TAG, "Failed to close ${sinks[index].name}", e)
+                    writer?.error = writer?.error ?: e
+                }
+            }
+        }
+        return sinks.mapIndexed { index, sink ->
+            val writer = writers[index]
+            val result = when {
+                writer == null -> Result.failure(IOException("Failed to open output stream"))
+                writer.error != null -> Result.failure(writer.error!!)
+                writer.bytesWritten != size -> Result.failure(IOException("Failed to copy entire file"))
+                else -> readBack(sink, sha512)
+            }
+            sink.onFinished(result)
+        }
+    }
+
+    private fun readBack(sink: Sink, sha512: String): Result<Unit> {
+        val openForReadBack = sink.openForReadBack ?: return Result.success(Unit)
+        val verified = try {
+            openForReadBack().use { HashVerifier.verifyHash(it, sha512) }
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to read back ${sink.name}", e)
+            false
+        }
+        if (!verified) {
+            Log.e(TAG, "Copy at ${sink.name} does not match the source")
+            return Result.failure(IOException("Copied file is corrupt"))
+        }
+        return Result.success(Unit)
+    }
+}
@@ -16,34 +16,40 @@
 
 package com.krypton.updater.data.download
 
-import android.util.DataUnit
 import android.util.Log
 
 import java.io.File
-import java.io.FileInputStream
 import java.io.IOException
 import java.io.InputStream
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.channels.ReadableByteChannel
+import java.nio.file.StandardOpenOption
 import java.security.MessageDigest
 
 object HashVerifier {
     private const val TAG = "HashVerifier"
-    private val HASH_BUFFER_SIZE = DataUnit.MEBIBYTES.toBytes(1).toInt()
 
-    private fun computeHash(inStream: InputStream): String? {
+    private fun computeHash(channel: ReadableByteChannel): String? {
         val messageDigest = MessageDigest.getInstance("SHA-512")
-        val buffer = ByteArray(HASH_BUFFER_SIZE)
         try {
-            var bytesRead = inStream.read(buffer)
-            while (bytesRead > 0) {
-                messageDigest.update(buffer, 0, bytesRead)
-                bytesRead = inStream.read(buffer)
+            BufferPool.withBuffer { buffer ->
+                while (channel.read(buffer) >= 0) {
+                    buffer.flip()
+                    messageDigest.update(buffer)
+                    buffer.clear()
+                }
             }
         } catch (e: IOException) {
             Log.e(TAG, "IOException while computing hash, ${e.message}")
             return null
         }
+        return toHexString(messageDigest.digest())
+    }
+
+    fun toHexString(digest: ByteArray): String {
         val builder = StringBuilder()
-        messageDigest.digest().forEach {
+        digest.forEach {
             builder.append(String.format("%02x", it))
         }
         return builder.toString()
@@ -52,19 +58,19 @@ object HashVerifier {
     fun verifyHash(file: File, hash: String): Boolean {
         if (!file.isFile) return false
         return try {
-            FileInputStream(file).use { computeHash(it) == hash }
+            FileChannel.open(file.toPath(), StandardOpenOption.READ).use { computeHash(it) == hash }
         } catch (e: IOException) {
             Log.e(TAG, "IOException while computing hash, ${e.message}")
             false
         }
     }
 
-    fun verifyHash(firstFileInputStream: InputStream, secondFileInputStream: InputStream): Boolean {
+    fun verifyHash(inputStream: InputStream, hash: String): Boolean {
         return try {
-            computeHash(firstFileInputStream) == computeHash(secondFileInputStream)
+            computeHash(Channels.newChannel(inputStream)) == hash
         } catch (e: IOException) {
             Log.e(TAG, "IOException while computing hash, ${e.message}")
             false
         }
     }
-}
\ No newline at end of file
+}
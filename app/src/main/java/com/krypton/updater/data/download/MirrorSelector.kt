@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.download
+
+import android.os.SystemClock
+import android.util.DataUnit
+import android.util.Log
+
+import com.krypton.updater.data.await
+
+import java.io.IOException
+import java.net.HttpURLConnection
+import java.net.URL
+import java.util.concurrent.TimeUnit
+
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.runInterruptible
+import kotlinx.coroutines.withTimeoutOrNull
+
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okio.blackholeSink
+
+/**
+ * Keeps track of the mirrors a file can be downloaded from, ordered from
+ * the most to the least preferred one, and of the mirrors that failed.
+ *
+ * @param okHttpClient the client used to probe the mirrors.
+ * @param mirrors the urls of the file, in the initial order of preference.
+ */
+class MirrorSelector(
+    private val okHttpClient: OkHttpClient,
+    mirrors: List<URL>,
+) {
+
+    private var rankedMirrors = mirrors.distinct()
+    private val failedMirrors = mutableSetOf<URL>()
+    private val failureCounts = mutableMapOf<URL, Int>()
+
+    /**
+     * The mirror to use for new connections, null if every mirror failed.
+     */
+    val current: URL?
+        @Synchronized
+        get() = rankedMirrors.firstOrNull { !failedMirrors.contains(it) }
+
+    /**
+     * Whether there is a working mirror other than [url].
+     */
+    @Synchronized
+    fun hasAlternative(url: URL) =
+        rankedMirrors.any { it != url && !failedMirrors.contains(it) }
+
+    /**
+     * Record a failed connection to [url]. Dropped connections and timeouts
+     * are usually transient, so a mirror is only given up on after it failed
+     * [MAX_FAILURES] times, or right away if the failure is [permanent].
+     *
+     * @return true if the download should be retried, either on [url]
+     *   or on the next best mirror.
+     */
+    @Synchronized
+    fun onFailure(url: URL, permanent: Boolean): Boolean {
+        val failures = (failureCounts[url] ?: 0) + 1
+        failureCounts[url] = failures
+        val givenUp = permanent || failures >= MAX_FAILURES
+        if (givenUp && rankedMirrors.size > 1 && failedMirrors.add(url)) {
+            Log.w(TAG, "Mirror $url failed, switching to $current")
+        }
+        val next = current ?: return false
+        return next != url || !givenUp
+    }
+
+    /**
+     * Probe all mirrors at once by downloading the first [PROBE_SIZE] bytes
+     * of the file from each one and rank them by the estimated time to
+     * download a segment, which accounts for both the time to first byte
+     * and the throughput. Mirrors that do not support range requests or
+     * that did not respond are ranked last.
+     *
+     * @return false if there were mirrors to probe and none of them
+     *   responded, true otherwise.
+     */
+    suspend fun rankMirrors(): Boolean {
+        val mirrors = synchronized(this) { rankedMirrors }
+        if (mirrors.size <= 1) return true
+        val scores = coroutineScope {
+            mirrors.map {
+                async(Dispatchers.IO) {
+                    withTimeoutOrNull(PROBE_TIMEOUT) { probe(it) } ?: Long.MAX_VALUE
+                }
+            }.awaitAll()
+        }
+        val ranked = mirrors.zip(scores).sortedBy { it.second }
+        logD("probe results = $ranked")
+        synchronized(this) {
+            rankedMirrors = ranked.map { it.first }
+        }
+        return scores.any { it != Long.MAX_VALUE }
+    }
+
+    /**
+     * @return the estimated time in ms to download [SEGMENT_ESTIMATE_SIZE]
+     *   bytes from [url], or [Long.MAX_VALUE] if the probe failed.
+     */
+    private suspend fun probe(url: URL): Long {
+        val startTime = SystemClock.elapsedRealtime()
+        val request = Request.Builder()
+            .url(url)
+            .header("Range", "bytes=0-${PROBE_SIZE - 1}")
+            .build()
+        return try {
+            okHttpClient.newCall(request).await().use { response ->
+                if (response.code != HttpURLConnection.HTTP_PARTIAL) {
+                    return Long.MAX_VALUE
+                }
+                val firstByteTime = SystemClock.elapsedRealtime()
+                val bytesRead = runInterruptible {
+                    response.body!!.source().use {
+                        it.readAll(blackholeSink())
+                    }
+                }
+                val transferTime = (SystemClock.elapsedRealtime() - firstByteTime).coerceAtLeast(1)
+                if (bytesRead == 0L) return Long.MAX_VALUE
+                (firstByteTime - startTime) + (SEGMENT_ESTIMATE_SIZE * transferTime) / bytesRead
+            }
+        } catch (e: IOException) {
+            Log.w(TAG, "Probing $url failed, ${e.message}")
+            Long.MAX_VALUE
+        }
+    }
+
+    companion object {
+        private const val TAG = "MirrorSelector"
+        private val DEBUG: Boolean
+            get() = Log.isLoggable(TAG, Log.DEBUG)
+
+        private val PROBE_SIZE = DataUnit.KIBIBYTES.toBytes(256)
+        private val PROBE_TIMEOUT = TimeUnit.SECONDS.toMillis(5)
+
+        // Number of failed connections after which a mirror is no longer used
+        private const val MAX_FAILURES = 3
+
+        // Amount of data the probe results are extrapolated to
+        private val SEGMENT_ESTIMATE_SIZE = DataUnit.MEBIBYTES.toBytes(16)
+
+        private fun logD(msg: String) {
+            if (DEBUG) Log.d(TAG, msg)
+        }
+    }
+}
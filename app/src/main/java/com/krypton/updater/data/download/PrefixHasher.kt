@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.download
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.locks.ReentrantLock
+
+import kotlin.concurrent.withLock
+import kotlin.math.min
+
+/**
+ * Computes the SHA-512 hash of a file while it is being written, possibly
+ * out of order, by following the contiguous prefix of written bytes.
+ * Bytes written right at the end of the prefix are hashed straight from
+ * the write buffer, gaps left behind by out of order writes are read
+ * back from the file once they are filled.
+ *
+ * @param channel a readable channel of the file being written.
+ * @param digest the digest of the prefix hashed so far.
+ * @param contiguousEnd returns the offset up to which the file has been
+ *   written contiguously, starting from the given offset.
+ */
+class PrefixHasher(
+    private val channel: FileChannel,
+    private val digest: ResumableSha512,
+    private val contiguousEnd: (Long) -> Long,
+) {
+    private val lock = ReentrantLock()
+
+    /**
+     * Must be called after the remaining bytes of [buffer] were written
+     * to the file at [position], but before they are accounted
+     * for by [contiguousEnd]. The position of [buffer] is left untouched.
+     */
+    fun onWrite(position: Long, buffer: ByteBuffer) {
+        // Never stall the writers, anything skipped here is read back later.
+        if (!lock.tryLock()) return
+        try {
+            if (digest.byteCount > position) return
+            catchUp()
+            if (digest.byteCount == position) {
+                digest.update(buffer.duplicate())
+            }
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * Hash the bytes that became part of the contiguous prefix
+     * without going through [onWrite].
+     */
+    fun advance() {
+        if (!lock.tryLock()) return
+        try {
+            catchUp()
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * Snapshot the state of this hasher for checkpointing.
+     *
+     * @return the number of bytes hashed and the serialized digest state.
+     */
+    fun saveState(): Pair<Long, ByteArray> = lock.withLock {
+        Pair(digest.byteCount, digest.saveState())
+    }
+
+    /**
+     * Hash whatever is left of the file. Should only be called once
+     * the entire file has been written.
+     *
+     * @return the hash as a lower case hex string.
+     */
+    fun finish(): String = lock.withLock {
+        catchUp()
+        digest.digest()
+    }
+
+    private fun catchUp() {
+        val end = contiguousEnd(digest.byteCount)
+        if (end <= digest.byteCount) return
+        BufferPool.withBuffer { buffer ->
+            while (digest.byteCount < end) {
+                buffer.clear()
+                buffer.limit(min(buffer.capacity().toLong(), end - digest.byteCount).toInt())
+                if (channel.read(buffer, digest.byteCount) < 0) break
+                buffer.flip()
+                digest.update(buffer)
+            }
+        }
+    }
+}
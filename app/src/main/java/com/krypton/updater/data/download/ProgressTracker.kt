@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.download
+
+import android.os.SystemClock
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Aggregates the progress reported by the download connections into
+ * [DownloadState.Downloading] snapshots. The byte count is accumulated
+ * under the same lock that samples and publishes it, so snapshots are
+ * always published in order. The speed is averaged over a sliding
+ * window of recent samples and snapshots are produced no more often
+ * than every [MIN_EMIT_INTERVAL] ms.
+ *
+ * @param totalBytes the size of the file in bytes.
+ */
+class ProgressTracker(private val totalBytes: Long) {
+
+    // Ring buffer of (timestamp, downloaded bytes) samples
+    private val sampleTimes = LongArray(MAX_SAMPLES)
+    private val sampleBytes = LongArray(MAX_SAMPLES)
+    private var sampleStart = 0
+    private var sampleCount = 0
+
+    private var downloadedBytes = 0L
+    private var lastEmitTime = 0L
+
+    /**
+     * Start over from [downloadedBytes] bytes, like when a download
+     * is resumed, and publish a snapshot right away.
+     *
+     * @param publish called with the new snapshot.
+     */
+    @Synchronized
+    fun reset(downloadedBytes: Long, publish: (DownloadState.Downloading) -> Unit) {
+        this.downloadedBytes = downloadedBytes
+        sampleCount = 0
+        publish(createSnapshot(SystemClock.elapsedRealtime()))
+    }
+
+    /**
+     * Record that [bytes] more bytes of the file were downloaded.
+     *
+     * @param publish called with a new snapshot if it is time to publish one.
+     */
+    @Synchronized
+    fun onBytesDownloaded(bytes: Long, publish: (DownloadState.Downloading) -> Unit) {
+        downloadedBytes += bytes
+        val now = SystemClock.elapsedRealtime()
+        if (sampleCount == 0 || now - sampleTimes[lastIndex()] >= SAMPLE_INTERVAL) {
+            addSample(now, downloadedBytes)
+        }
+        if (now - lastEmitTime < MIN_EMIT_INTERVAL) return
+        publish(createSnapshot(now))
+    }
+
+    /**
+     * Record that [bytes] downloaded bytes were thrown away, like a corrupt
+     * chunk. Previous samples are meaningless after that and are dropped.
+     */
+    @Synchronized
+    fun onBytesDiscarded(bytes: Long) {
+        downloadedBytes -= bytes
+        sampleCount = 0
+    }
+
+    private fun createSnapshot(now: Long): DownloadState.Downloading {
+        lastEmitTime = now
+        if (sampleCount == 0) addSample(now, downloadedBytes)
+        while (sampleCount > 1 && now - sampleTimes[sampleStart] > WINDOW_DURATION) {
+            sampleStart = (sampleStart + 1) % MAX_SAMPLES
+            sampleCount--
+        }
+        val elapsed = now - sampleTimes[sampleStart]
+        val bytesPerSecond = if (elapsed > 0) {
+            (downloadedBytes - sampleBytes[sampleStart]) * 1000 / elapsed
+        } else {
+            0
+        }
+        val etaMillis = if (bytesPerSecond > 0) {
+            (totalBytes - downloadedBytes).coerceAtLeast(0) * 1000 / bytesPerSecond
+        } else {
+            null
+        }
+        return DownloadState.Downloading(downloadedBytes, totalBytes, bytesPerSecond, etaMillis)
+    }
+
+    private fun lastIndex() = (sampleStart + sampleCount - 1) % MAX_SAMPLES
+
+    private fun addSample(time: Long, bytes: Long) {
+        if (sampleCount == MAX_SAMPLES) {
+            sampleStart = (sampleStart + 1) % MAX_SAMPLES
+            sampleCount--
+        }
+        val index = (sampleStart + sampleCount) % MAX_SAMPLES
+        sampleTimes[index] = time
+        sampleBytes[index] = bytes
+        sampleCount++
+    }
+
+    companion object {
+        // At most 4 updates per second
+        private const val MIN_EMIT_INTERVAL = 250L
+
+        private const val SAMPLE_INTERVAL = 100L
+
+        // Duration over which the speed is averaged
+        private val WINDOW_DURATION = TimeUnit.SECONDS.toMillis(5)
+
+        private val MAX_SAMPLES = (WINDOW_DURATION / SAMPLE_INTERVAL).toInt() + 1
+    }
+}
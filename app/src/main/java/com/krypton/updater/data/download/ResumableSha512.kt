@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.download
+
+import java.nio.ByteBuffer
+
+/**
+ * SHA-512 implementation whose intermediate state can be exported
+ * with [saveState] and restored with [restoreState], unlike
+ * [java.security.MessageDigest]. This allows a partially computed
+ * digest to be persisted along with a partially downloaded file.
+ */
+class ResumableSha512 private constructor(
+    private val state: LongArray,
+    private val block: ByteArray,
+    private var blockLength: Int,
+    byteCount: Long,
+) {
+    private val schedule = LongArray(80)
+
+    /**
+     * Total number of bytes that have been fed into this digest.
+     */
+    var byteCount: Long = byteCount
+        private set
+
+    constructor() : this(INITIAL_STATE.copyOf(), ByteArray(BLOCK_SIZE), 0, 0)
+
+    fun update(buffer: ByteArray, offset: Int = 0, length: Int = buffer.size) {
+        var position = offset
+        var remaining = length
+        byteCount += length
+        if (blockLength > 0) {
+            val count = minOf(remaining, BLOCK_SIZE - blockLength)
+            System.arraycopy(buffer, position, block, blockLength, count)
+            blockLength += count
+            position += count
+            remaining -= count
+            if (blockLength < BLOCK_SIZE) return
+            processBlock(block, 0)
+            blockLength = 0
+        }
+        while (remaining >= BLOCK_SIZE) {
+            processBlock(buffer, position)
+            position += BLOCK_SIZE
+            remaining -= BLOCK_SIZE
+        }
+        if (remaining > 0) {
+            System.arraycopy(buffer, position, block, 0, remaining)
+            blockLength = remaining
+        }
+    }
+
+    /**
+     * Feed the remaining bytes of [buffer] into the digest,
+     * leaving its position at its limit.
+     */
+    fun update(buffer: ByteBuffer) {
+        byteCount += buffer.remaining()
+        while (buffer.hasRemaining()) {
+            val count = minOf(buffer.remaining(), BLOCK_SIZE - blockLength)
+            buffer.get(block, blockLength, count)
+            blockLength += count
+            if (blockLength == BLOCK_SIZE) {
+                processBlock(block, 0)
+                blockLength = 0
+            }
+        }
+    }
+
+    /**
+     * Compute the digest of all the bytes fed so far. This digest
+     * is left untouched and can be updated further.
+     *
+     * @return the digest as a lower case hex string.
+     */
+    fun digest(): String {
+        val copy = ResumableSha512(state.copyOf(), block.copyOf(), blockLength, byteCount)
+        val padding = ByteArray(
+            if (blockLength < BLOCK_SIZE - LENGTH_SIZE) {
+                BLOCK_SIZE - blockLength
+            } else {
+                2 * BLOCK_SIZE - blockLength
+            }
+        )
+        padding[0] = 0x80.toByte()
+        ByteBuffer.wrap(padding, padding.size - LENGTH_SIZE, LENGTH_SIZE)
+            .putLong(byteCount ushr 61)
+            .putLong(byteCount shl 3)
+        copy.update(padding)
+        val builder = StringBuilder(state.size * 16)
+        copy.state.forEach {
+            builder.append(String.format("%016x", it))
+        }
+        return builder.toString()
+    }
+
+    /**
+     * Export the intermediate state of this digest.
+     *
+     * @return the serialized state which can be passed to [restoreState].
+     */
+    fun saveState(): ByteArray =
+        ByteBuffer.allocate(state.size * Long.SIZE_BYTES + Long.SIZE_BYTES + blockLength).apply {
+            state.forEach { putLong(it) }
+            putLong(byteCount)
+            put(block, 0, blockLength)
+        }.array()
+
+    private fun processBlock(buffer: ByteArray, offset: Int) {
+        val w = schedule
+        for (t in 0 until 16) {
+            var word = 0L
+            for (i in 0 until 8) {
+                word = (word shl 8) or (buffer[offset + t * 8 + i].toLong() and 0xff)
+            }
+            w[t] = word
+        }
+        for (t in 16 until 80) {
+            val s0 = w[t - 15].rotateRight(1) xor w[t - 15].rotateRight(8) xor (w[t - 15] ushr 7)
+            val s1 = w[t - 2].rotateRight(19) xor w[t - 2].rotateRight(61) xor (w[t - 2] ushr 6)
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1
+        }
+        var a = state[0]
+        var b = state[1]
+        var c = state[2]
+        var d = state[3]
+        var e = state[4]
+        var f = state[5]
+        var g = state[6]
+        var h = state[7]
+        for (t in 0 until 80) {
+            val s1 = e.rotateRight(14) xor e.rotateRight(18) xor e.rotateRight(41)
+            val ch = (e and f) xor (e.inv() and g)
+            val temp1 = h + s1 + ch + K[t] + w[t]
+            val s0 = a.rotateRight(28) xor a.rotateRight(34) xor a.rotateRight(39)
+            val maj = (a and b) xor (a and c) xor (b and c)
+            val temp2 = s0 + maj
+            h = g
+            g = f
+            f = e
+            e = d + temp1
+            d = c
+            c = b
+            b = a
+            a = temp1 + temp2
+        }
+        state[0] += a
+        state[1] += b
+        state[2] += c
+        state[3] += d
+        state[4] += e
+        state[5] += f
+        state[6] += g
+        state[7] += h
+    }
+
+    companion object {
+        private const val BLOCK_SIZE = 128
+
+        // Size of the message length appended while padding
+        private const val LENGTH_SIZE = 16
+
+        /**
+         * Restore a digest from a state exported with [saveState].
+         *
+         * @param savedState the serialized state.
+         * @return the restored digest, or null if [savedState] is malformed.
+         */
+        fun restoreState(savedState: ByteArray): ResumableSha512? {
+            val blockLength =
+                savedState.size - (INITIAL_STATE.size * Long.SIZE_BYTES + Long.SIZE_BYTES)
+            if (blockLength !in 0 until BLOCK_SIZE) return null
+            val buffer = ByteBuffer.wrap(savedState)
+            val state = LongArray(INITIAL_STATE.size) { buffer.long }
+            val byteCount = buffer.long
+            if (byteCount % BLOCK_SIZE != blockLength.toLong()) return null
+            val block = ByteArray(BLOCK_SIZE)
+            buffer.get(block, 0, blockLength)
+            return ResumableSha512(state, block, blockLength, byteCount)
+        }
+
+        private val INITIAL_STATE = longArrayOf(
+            0x6a09e667f3bcc908uL.toLong(), 0xbb67ae8584caa73buL.toLong(), 0x3c6ef372fe94f82buL.toLong(),
+            0xa54ff53a5f1d36f1uL.toLong(), 0x510e527fade682d1uL.toLong(), 0x9b05688c2b3e6c1fuL.toLong(),
+            0x1f83d9abfb41bd6buL.toLong(), 0x5be0cd19137e2179uL.toLong(),
+        )
+
+        private val K = longArrayOf(
+            0x428a2f98d728ae22uL.toLong(), 0x7137449123ef65cduL.toLong(), 0xb5c0fbcfec4d3b2fuL.toLong(),
+            0xe9b5dba58189dbbcuL.toLong(), 0x3956c25bf348b538uL.toLong(), 0x59f111f1b605d019uL.toLong(),
+            0x923f82a4af194f9buL.toLong(), 0xab1c5ed5da6d8118uL.toLong(), 0xd807aa98a3030242uL.toLong(),
+            0x12835b0145706fbeuL.toLong(), 0x243185be4ee4b28cuL.toLong(), 0x550c7dc3d5ffb4e2uL.toLong(),
+            0x72be5d74f27b896fuL.toLong(), 0x80deb1fe3b1696b1uL.toLong(), 0x9bdc06a725c71235uL.toLong(),
+            0xc19bf174cf692694uL.toLong(), 0xe49b69c19ef14ad2uL.toLong(), 0xefbe4786384f25e3uL.toLong(),
+            0x0fc19dc68b8cd5b5uL.toLong(), 0x240ca1cc77ac9c65uL.toLong(), 0x2de92c6f592b0275uL.toLong(),
+            0x4a7484aa6ea6e483uL.toLong(), 0x5cb0a9dcbd41fbd4uL.toLong(), 0x76f988da831153b5uL.toLong(),
+            0x983e5152ee66dfabuL.toLong(), 0xa831c66d2db43210uL.toLong(), 0xb00327c898fb213fuL.toLong(),
+            0xbf597fc7beef0ee4uL.toLong(), 0xc6e00bf33da88fc2uL.toLong(), 0xd5a79147930aa725uL.toLong(),
+            0x06ca6351e003826fuL.toLong(), 0x142929670a0e6e70uL.toLong(), 0x27b70a8546d22ffcuL.toLong(),
+            0x2e1b21385c26c926uL.toLong(), 0x4d2c6dfc5ac42aeduL.toLong(), 0x53380d139d95b3dfuL.toLong(),
+            0x650a73548baf63deuL.toLong(), 0x766a0abb3c77b2a8uL.toLong(), 0x81c2c92e47edaee6uL.toLong(),
+            0x92722c851482353buL.toLong(), 0xa2bfe8a14cf10364uL.toLong(), 0xa81a664bbc423001uL.toLong(),
+            0xc24b8b70d0f89791uL.toLong(), 0xc76c51a30654be30uL.toLong(), 0xd192e819d6ef5218uL.toLong(),
+            0xd69906245565a910uL.toLong(), 0xf40e35855771202auL.toLong(), 0x106aa07032bbd1b8uL.toLong(),
+            0x19a4c116b8d2d0c8uL.toLong(), 0x1e376c085141ab53uL.toLong(), 0x2748774cdf8eeb99uL.toLong(),
+            0x34b0bcb5e19b48a8uL.toLong(), 0x391c0cb3c5c95a63uL.toLong(), 0x4ed8aa4ae3418acbuL.toLong(),
+            0x5b9cca4f7763e373uL.toLong(), 0x682e6ff3d6b2b8a3uL.toLong(), 0x748f82ee5defb2fcuL.toLong(),
+            0x78a5636f43172f60uL.toLong(), 0x84c87814a1f0ab72uL.toLong(), 0x8cc702081a6439ecuL.toLong(),
+            0x90befffa23631e28uL.toLong(), 0xa4506cebde82bde9uL.toLong(), 0xbef9a3f7b2c67915uL.toLong(),
+            0xc67178f2e372532buL.toLong(), 0xca273eceea26619cuL.toLong(), 0xd186b8c721c0c207uL.toLong(),
+            0xeada7dd6cde0eb1euL.toLong(), 0xf57d4f7fee6ed178uL.toLong(), 0x06f067aa72176fbauL.toLong(),
+            0x0a637dc5a2c898a6uL.toLong(), 0x113f9804bef90daeuL.toLong(), 0x1b710b35131c471buL.toLong(),
+            0x28db77f523047d84uL.toLong(), 0x32caab7b40c72493uL.toLong(), 0x3c9ebe0a15c9bebcuL.toLong(),
+            0x431d67c49c100d4cuL.toLong(), 0x4cc5d4becb3e42b6uL.toLong(), 0x597f299cfc657e2auL.toLong(),
+            0x5fcb6fab3ad6faecuL.toLong(), 0x6c44198c4a475817uL.toLong(),
+        )
+    }
+}
@@ -26,4 +26,5 @@ import com.fasterxml.jackson.annotation.JsonProperty
 data class Content(
     @JsonProperty("name") val name: String,
     @JsonProperty("download_url") val url: String,
+    @JsonProperty("sha") val sha: String,
 )
\ No newline at end of file
@@ -16,22 +16,26 @@
 
 package com.krypton.updater.data.retrofit
 
-import retrofit2.Call
+import okhttp3.ResponseBody
+
 import retrofit2.http.GET
 import retrofit2.http.Path
 import retrofit2.http.Query
 import retrofit2.http.Url
+import retrofit2.Response
 
+// Calls are cancelled along with the calling coroutine
 interface GithubApiService {
+    // Parsed by the caller, there is no need to when the server answers with a 304
     @GET
-    fun getOTAJsonContent(@Url url: String): Call<OTAJsonContent>
+    suspend fun getOTAJsonContent(@Url url: String): Response<ResponseBody>
 
     @GET("contents/{device}")
-    fun getContents(
+    suspend fun getContents(
         @Path("device") device: String,
         @Query("ref") branch: String,
-    ): Call<List<Content>>
+    ): Response<List<Content>>
 
     @GET
-    fun getChangelog(@Url url: String): Call<String?>
+    suspend fun getChangelog(@Url url: String): Response<String>
 }
\ No newline at end of file
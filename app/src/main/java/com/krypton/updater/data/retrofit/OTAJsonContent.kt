@@ -35,4 +35,6 @@ data class OTAJsonContent(
     @JsonProperty("file_name") val fileName: String,
     @JsonProperty("file_size") val fileSize: Long,
     @JsonProperty("sha_512") val sha512: String,
+    @JsonProperty("chunk_size") val chunkSize: Long?,
+    @JsonProperty("chunk_sha_256") val chunkHashes: List<String>?,
 )
\ No newline at end of file
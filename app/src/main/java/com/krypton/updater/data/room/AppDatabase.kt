@@ -23,9 +23,11 @@ import androidx.room.TypeConverters
 @Database(
     entities = [
         BuildInfoEntity::class,
-        ChangelogEntity::class
+        DownloadSourceEntity::class,
+        ChangelogEntity::class,
+        ChangelogFtsEntity::class,
     ],
-    version = 3,
+    version = 7,
     exportSchema = false,
 )
 @TypeConverters(Converters::class)
@@ -18,29 +18,30 @@ package com.krypton.updater.data.room
 
 import androidx.room.ColumnInfo
 import androidx.room.Entity
-import androidx.room.Fts4
-import androidx.room.Ignore
+import androidx.room.Index
 import androidx.room.PrimaryKey
 
-@Entity(tableName = "build_info_table")
-@Fts4
+@Entity(
+    tableName = "build_info_table",
+    indices = [Index("date")],
+)
 // TODO remove url field once we switch to A13
 data class BuildInfoEntity(
+    @PrimaryKey(autoGenerate = true)
+    var id: Long = 0,
     var version: String,
     var date: Long,
     @ColumnInfo(name = "pre_build_incremental")
     var preBuildIncremental: Long?,
     var url: String?,
-    @ColumnInfo(name = "download_sources")
-    var downloadSources: Map<String, String>?,
     @ColumnInfo(name = "file_name")
     var fileName: String,
     @ColumnInfo(name = "file_size")
     var fileSize: Long,
     @ColumnInfo(name = "sha")
     var sha512: String,
-) {
-    @PrimaryKey(autoGenerate = true)
-    @Ignore
-    var rowid: Int? = null
-}
\ No newline at end of file
+    @ColumnInfo(name = "chunk_size")
+    var chunkSize: Long?,
+    @ColumnInfo(name = "chunk_sha_256")
+    var chunkHashes: List<String>?,
+)
\ No newline at end of file
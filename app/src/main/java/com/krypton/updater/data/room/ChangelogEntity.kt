@@ -17,17 +17,18 @@
 package com.krypton.updater.data.room
 
 import androidx.room.Entity
-import androidx.room.Fts4
-import androidx.room.Ignore
+import androidx.room.Index
 import androidx.room.PrimaryKey
 
-@Entity(tableName = "changelog_table")
-@Fts4
+@Entity(
+    tableName = "changelog_table",
+    indices = [Index("date")],
+)
 data class ChangelogEntity(
+    @PrimaryKey
+    var name: String,
+    // Git blob sha of the changelog file
+    var sha: String,
     var date: Long,
     var changelog: String?,
-) {
-    @PrimaryKey(autoGenerate = true)
-    @Ignore
-    var rowid: Int? = null
-}
\ No newline at end of file
+)
\ No newline at end of file
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.room
+
+/**
+ * A changelog as shown in the changelog screen.
+ *
+ * @property date the date of the changelog.
+ * @property text the whole changelog, or a snippet around the matches
+ *   of a search, with the matches wrapped in [HIGHLIGHT_START] and
+ *   [HIGHLIGHT_END].
+ */
+data class ChangelogItem(
+    val date: Long,
+    val text: String?,
+) {
+    companion object {
+        // Must match the markers passed to snippet() in UpdateInfoDao
+        const val HIGHLIGHT_START = '\u0002'
+        const val HIGHLIGHT_END = '\u0003'
+    }
+}
@@ -18,36 +18,26 @@ package com.krypton.updater.data.room
 
 import androidx.room.TypeConverter
 
+import org.json.JSONArray
 import org.json.JSONException
-import org.json.JSONObject
 
 class Converters {
     @TypeConverter
-    fun fromString(value: String?): Map<String, String>? {
+    fun stringToList(value: String?): List<String>? {
         if (value == null) return null
         return try {
-            val jsonObject = JSONObject(value)
-            val map = mutableMapOf<String, String>()
-            jsonObject.keys().forEach {
-                map[it] = jsonObject.getString(it)
+            val jsonArray = JSONArray(value)
+            List(jsonArray.length()) {
+                jsonArray.getString(it)
             }
-            map.toMap()
         } catch (e: JSONException) {
             null
         }
     }
 
     @TypeConverter
-    fun mapToString(value: Map<String, String>?): String? {
+    fun listToString(value: List<String>?): String? {
         if (value == null) return null
-        return try {
-            val jsonObject = JSONObject()
-            value.forEach {
-                jsonObject.put(it.key, it.value)
-            }
-            jsonObject.toString()
-        } catch (e: JSONException) {
-            null
-        }
+        return JSONArray(value).toString()
     }
 }
\ No newline at end of file
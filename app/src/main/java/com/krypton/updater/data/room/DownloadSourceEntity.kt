@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.room
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.ForeignKey
+import androidx.room.Index
+import androidx.room.PrimaryKey
+
+@Entity(
+    tableName = "download_source_table",
+    foreignKeys = [
+        ForeignKey(
+            entity = BuildInfoEntity::class,
+            parentColumns = ["id"],
+            childColumns = ["build_info_id"],
+            onDelete = ForeignKey.CASCADE,
+        )
+    ],
+    indices = [Index("build_info_id")],
+)
+data class DownloadSourceEntity(
+    @PrimaryKey(autoGenerate = true)
+    var id: Long = 0,
+    @ColumnInfo(name = "build_info_id")
+    var buildInfoId: Long,
+    var name: String,
+    var url: String,
+)
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.room
+
+import android.content.ContentValues
+import android.database.Cursor
+import android.database.sqlite.SQLiteDatabase
+
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+
+import org.json.JSONException
+import org.json.JSONObject
+
+/**
+ * Migrations to be added to the [AppDatabase] builder. Version 3 is the
+ * only one released before the current schema, older ones are dropped.
+ */
+val MIGRATIONS: Array<Migration> = arrayOf(FtsToRelationalMigration)
+
+/**
+ * Move the fts tables of version 3 over to the relational schema, where
+ * download sources have a table of their own instead of being stored as
+ * a json blob, and add a full text index over the changelogs.
+ *
+ * Changelogs of version 3 don't have the file name and sha to be matched
+ * against the ones in github, so they are dropped and fetched again on
+ * the next update check.
+ */
+private object FtsToRelationalMigration : Migration(3, 7) {
+
+    override fun migrate(database: SupportSQLiteDatabase) {
+        database.execSQL("ALTER TABLE `build_info_table` RENAME TO `build_info_table_old`")
+        database.execSQL("DROP TABLE `changelog_table`")
+        createTables(database)
+        copyBuildInfo(database)
+        database.execSQL("DROP TABLE `build_info_table_old`")
+        createChangelogIndex(database)
+    }
+
+    private fun createTables(database: SupportSQLiteDatabase) {
+        database.execSQL(
+            "CREATE TABLE IF NOT EXISTS `build_info_table` (" +
+                "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                "`version` TEXT NOT NULL, `date` INTEGER NOT NULL, " +
+                "`pre_build_incremental` INTEGER, `url` TEXT, " +
+                "`file_name` TEXT NOT NULL, `file_size` INTEGER NOT NULL, " +
+                "`sha` TEXT NOT NULL, `chunk_size` INTEGER, `chunk_sha_256` TEXT)"
+        )
+        database.execSQL(
+            "CREATE INDEX IF NOT EXISTS `index_build_info_table_date` " +
+                "ON `build_info_table` (`date`)"
+        )
+        database.execSQL(
+            "CREATE TABLE IF NOT EXISTS `download_source_table` (" +
+                "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                "`build_info_id` INTEGER NOT NULL, `name` TEXT NOT NULL, `url` TEXT NOT NULL, " +
+                "FOREIGN KEY(`build_info_id`) REFERENCES `build_info_table`(`id`) " +
+                "ON UPDATE NO ACTION ON DELETE CASCADE )"
+        )
+        database.execSQL(
+            "CREATE INDEX IF NOT EXISTS `index_download_source_table_build_info_id` " +
+                "ON `download_source_table` (`build_info_id`)"
+        )
+        database.execSQL(
+            "CREATE TABLE IF NOT EXISTS `changelog_table` (" +
+                "`name` TEXT NOT NULL, `sha` TEXT NOT NULL, `date` INTEGER NOT NULL, " +
+                "`changelog` TEXT, PRIMARY KEY(`name`))"
+        )
+        database.execSQL(
+            "CREATE INDEX IF NOT EXISTS `index_changelog_table_date` " +
+                "ON `changelog_table` (`date`)"
+        )
+    }
+
+    private fun copyBuildInfo(database: SupportSQLiteDatabase) {
+        database.query(
+            "SELECT `version`, `date`, `pre_build_incremental`, `url`, `download_sources`, " +
+                "`file_name`, `file_size`, `sha` FROM `build_info_table_old`"
+        ).use { cursor ->
+            while (cursor.moveToNext()) {
+                val values = ContentValues().apply {
+                    put("version", cursor.getString(0))
+                    put("date", cursor.getLong(1))
+                    put("pre_build_incremental", cursor.getLongOrNull(2))
+                    put("url", cursor.getString(3))
+                    put("file_name", cursor.getString(5))
+                    put("file_size", cursor.getLong(6))
+                    put("sha", cursor.getString(7))
+                }
+                val id = database.insert(
+                    "build_info_table",
+                    SQLiteDatabase.CONFLICT_ABORT,
+                    values
+                )
+                parseDownloadSources(cursor.getString(4))?.forEach { (name, url) ->
+                    database.insert(
+                        "download_source_table",
+                        SQLiteDatabase.CONFLICT_ABORT,
+                        ContentValues().apply {
+                            put("build_info_id", id)
+                            put("name", name)
+                            put("url", url)
+                        }
+                    )
+                }
+            }
+        }
+    }
+
+    private fun createChangelogIndex(database: SupportSQLiteDatabase) {
+        database.execSQL(
+            "CREATE VIRTUAL TABLE IF NOT EXISTS `changelog_fts` " +
+                "USING FTS4(`changelog` TEXT, content=`changelog_table`)"
+        )
+        listOf("BEFORE_UPDATE", "BEFORE_DELETE").forEach {
+            database.execSQL(
+                "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_changelog_fts_$it " +
+                    "${it.replace('_', ' ')} ON `changelog_table` BEGIN " +
+                    "DELETE FROM `changelog_fts` WHERE `docid`=OLD.`rowid`; END"
+            )
+        }
+        listOf("AFTER_UPDATE", "AFTER_INSERT").forEach {
+            database.execSQL(
+                "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_changelog_fts_$it " +
+                    "${it.replace('_', ' ')} ON `changelog_table` BEGIN " +
+                    "INSERT INTO `changelog_fts`(`docid`, `changelog`) " +
+                    "VALUES (NEW.`rowid`, NEW.`changelog`); END"
+            )
+        }
+        database.execSQL("INSERT INTO `changelog_fts`(`changelog_fts`) VALUES('rebuild')")
+    }
+
+    private fun Cursor.getLongOrNull(index: Int): Long? =
+        if (isNull(index)) null else getLong(index)
+
+    private fun parseDownloadSources(value: String?): Map<String, String>? {
+        if (value == null) return null
+        return try {
+            val jsonObject = JSONObject(value)
+            val map = mutableMapOf<String, String>()
+            jsonObject.keys().forEach {
+                map[it] = jsonObject.getString(it)
+            }
+            map.toMap()
+        } catch (e: JSONException) {
+            null
+        }
+    }
+}
@@ -16,11 +16,13 @@
 
 package com.krypton.updater.data.room
 
+import androidx.paging.PagingSource
 import androidx.room.Dao
 import androidx.room.Insert
 import androidx.room.MapInfo
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
+import androidx.room.Transaction
 
 import kotlinx.coroutines.flow.Flow
 
@@ -29,22 +31,96 @@ interface UpdateInfoDao {
     @Query("SELECT COUNT(*) FROM build_info_table")
     fun entityCount(): Int
 
+    @Transaction
     @Query("SELECT * FROM build_info_table ORDER BY date DESC LIMIT 1")
-    fun getBuildInfo(): Flow<BuildInfoEntity?>
+    fun getBuildInfo(): Flow<BuildInfoWithSources?>
 
-    @MapInfo(keyColumn = "date", valueColumn = "changelog")
-    @Query("SELECT changelog_table.date AS date, changelog_table.changelog AS changelog FROM changelog_table")
-    fun getChangelogs(): Flow<Map<Long, String?>?>
+    @Query("SELECT date, changelog AS text FROM changelog_table ORDER BY date")
+    fun getChangelogItems(): PagingSource<Int, ChangelogItem>
 
-    @Insert(onConflict = OnConflictStrategy.REPLACE)
-    fun insertBuildInfo(buildInfoEntity: BuildInfoEntity)
+    /**
+     * Search the changelogs with an fts [query]. The text of each
+     * result is a snippet around the matches.
+     */
+    @Query(
+        "SELECT changelog_table.date AS date, " +
+            "snippet(changelog_fts, char(2), char(3), '…', -1, 32) AS text " +
+            "FROM changelog_table JOIN changelog_fts ON changelog_table.rowid = changelog_fts.docid " +
+            "WHERE changelog_fts MATCH :query ORDER BY changelog_table.date"
+    )
+    fun searchChangelogs(query: String): PagingSource<Int, ChangelogItem>
+
+    @Insert
+    fun insertBuildInfo(buildInfoEntity: BuildInfoEntity): Long
+
+    @Insert
+    fun insertDownloadSources(downloadSources: List<DownloadSourceEntity>)
+
+    /**
+     * Insert [buildInfoEntity] along with it's [downloadSources],
+     * a [Map] of mirror name to url.
+     */
+    @Transaction
+    fun insertBuildInfoWithSources(
+        buildInfoEntity: BuildInfoEntity,
+        downloadSources: Map<String, String>?
+    ) {
+        val id = insertBuildInfo(buildInfoEntity)
+        downloadSources?.map { (name, url) ->
+            DownloadSourceEntity(buildInfoId = id, name = name, url = url)
+        }?.let {
+            insertDownloadSources(it)
+        }
+    }
+
+    @MapInfo(keyColumn = "name", valueColumn = "sha")
+    @Query("SELECT changelog_table.name AS name, changelog_table.sha AS sha FROM changelog_table")
+    fun getChangelogShas(): Map<String, String>
 
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     fun insertChangelog(changelogEntity: List<ChangelogEntity>)
 
+    @Query("DELETE FROM changelog_table WHERE name IN (:names)")
+    fun deleteChangelogs(names: Collection<String>)
+
+    /**
+     * Drop the changelogs in [removedNames] and replace or add [changelogs].
+     */
+    @Transaction
+    fun syncChangelogs(removedNames: Collection<String>, changelogs: List<ChangelogEntity>) {
+        // Rows removed by a REPLACE don't fire the delete triggers
+        // that keep the fts index in sync, so delete them explicitly.
+        deleteChangelogs(removedNames + changelogs.map { it.name })
+        insertChangelog(changelogs)
+    }
+
+    // Download sources are deleted along by the foreign key
     @Query("DELETE FROM build_info_table")
     fun clearBuildInfo()
 
     @Query("DELETE FROM changelog_table")
     fun clearChangelogs()
+
+    @Transaction
+    fun clearAll() {
+        clearBuildInfo()
+        clearChangelogs()
+    }
+
+    /**
+     * Replace the saved build info with [buildInfoEntity] and it's
+     * [downloadSources], and apply changelog changes as in [syncChangelogs],
+     * all in one transaction.
+     */
+    @Transaction
+    fun replaceUpdateInfo(
+        buildInfoEntity: BuildInfoEntity?,
+        downloadSources: Map<String, String>?,
+        removedChangelogs: Collection<String>,
+        changelogs: List<ChangelogEntity>
+    ) {
+        clearBuildInfo()
+        buildInfoEntity?.let { insertBuildInfoWithSources(it, downloadSources) }
+        syncChangelogs(removedChangelogs, changelogs)
+    }
 }
\ No newline at end of file
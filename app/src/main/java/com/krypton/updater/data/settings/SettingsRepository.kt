@@ -38,6 +38,9 @@ class SettingsRepository @Inject constructor(
     val optOutIncremental: Flow<Boolean>
         get() = appSettings.data.map { it.optOutIncremental }
 
+    val streamInstall: Flow<Boolean>
+        get() = appSettings.data.map { it.streamInstall }
+
     /**
      * Set interval (in days) for automatic update checking.
      *
@@ -64,4 +67,18 @@ class SettingsRepository @Inject constructor(
                 .build()
         }
     }
+
+    /**
+     * Set whether to install updates by streaming them from the
+     * server instead of downloading them first.
+     *
+     * @param stream true if streaming, false otherwise.
+     */
+    suspend fun setStreamInstall(stream: Boolean) {
+        appSettings.updateData {
+            it.toBuilder()
+                .setStreamInstall(stream)
+                .build()
+        }
+    }
 }
\ No newline at end of file
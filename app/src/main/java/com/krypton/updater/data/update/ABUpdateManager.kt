@@ -17,6 +17,8 @@
 package com.krypton.updater.data.update
 
 import android.content.Context
+import android.content.res.AssetFileDescriptor
+import android.net.Uri
 import android.os.*
 import android.os.UpdateEngine.ErrorCodeConstants
 import android.os.UpdateEngine.UpdateStatusConstants
@@ -24,14 +26,21 @@ import android.util.Log
 
 import com.krypton.updater.R
 import com.krypton.updater.data.BatteryMonitor
+import com.krypton.updater.data.download.MirrorSelector
+import com.krypton.updater.di.DownloadHttpClient
 
 import dagger.hilt.android.qualifiers.ApplicationContext
 
+import java.io.IOException
+import java.net.URL
+
 import javax.inject.Inject
 import javax.inject.Singleton
 
 import kotlinx.coroutines.CoroutineScope
 
+import okhttp3.OkHttpClient
+
 @Singleton
 class ABUpdateManager @Inject constructor(
     @ApplicationContext private val context: Context,
@@ -39,6 +48,8 @@ class ABUpdateManager @Inject constructor(
     private val otaFileManager: OTAFileManager,
     private val updateEngine: UpdateEngine,
     private val batteryMonitor: BatteryMonitor,
+    private val okHttpClient: OkHttpClient,
+    @DownloadHttpClient private val downloadHttpClient: OkHttpClient,
 ) : UpdateManager(context, applicationScope, batteryMonitor) {
 
     private val updateEngineCallback = object : UpdateEngineCallback() {
@@ -116,6 +127,10 @@ class ABUpdateManager @Inject constructor(
 
     override val supportsUpdateSuspension = true
 
+    override val supportsStreaming = true
+
+    override val supportsInPlaceUpdate = true
+
     private var updateScheduled = false
 
     init {
@@ -156,11 +171,99 @@ class ABUpdateManager @Inject constructor(
             )
             return
         }
-        val payloadInfo = payloadInfoResult.getOrThrow()
-        updateEngine.apply {
-            setPerformanceMode(true)
-            bind(updateEngineCallback)
+        applyPayload(payloadInfoResult.getOrThrow())
+    }
+
+    override fun startInPlace(uri: Uri) {
+        logD("startInPlace: uri = $uri, updateScheduled = $updateScheduled")
+        if (updateScheduled) return
+        if (!batteryMonitor.isBatteryOkay()) {
+            logAndUpdateState(context.getString(R.string.low_battery_plug_in))
+            return
+        }
+        updateStateInternal.value = UpdateState.Initializing
+        val pfd = try {
+            context.contentResolver.openFileDescriptor(uri, "r")
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to open $uri", e)
+            null
+        } catch (e: SecurityException) {
+            Log.e(TAG, "No permission to open $uri", e)
+            null
+        } ?: run {
+            logAndUpdateState(context.getString(R.string.failed_to_open_update_file))
+            return
+        }
+        // update_engine gets it's own copy of the fd, so ours can be closed
+        pfd.use {
+            val payloadInfoResult = PayloadInfo.Factory.createPayloadInfo(context, it)
+            if (payloadInfoResult.isFailure) {
+                logAndUpdateState(
+                    context.getString(
+                        R.string.payload_generation_failed,
+                        payloadInfoResult.exceptionOrNull()?.localizedMessage
+                    )
+                )
+                return
+            }
+            val payloadInfo = payloadInfoResult.getOrThrow()
+            bindUpdateEngine()
+            try {
+                updateEngine.applyPayload(
+                    AssetFileDescriptor(it, payloadInfo.offset, payloadInfo.size),
+                    payloadInfo.headerKeyValuePairs
+                )
+                updateScheduled = true
+                acquireLock()
+            } catch (e: ServiceSpecificException) {
+                logAndUpdateState(context.getString(R.string.applying_payload_failed, e.message))
+            }
+        }
+    }
+
+    override suspend fun startStreaming(mirrors: List<String>) {
+        logD("startStreaming: updateScheduled = $updateScheduled")
+        if (updateScheduled) return
+        if (!batteryMonitor.isBatteryOkay()) {
+            logAndUpdateState(context.getString(R.string.low_battery_plug_in))
+            return
+        }
+        updateStateInternal.value = UpdateState.Initializing
+        val urlResult = runCatching { mirrors.map { URL(it) } }
+        if (urlResult.isFailure) {
+            Log.e(TAG, "Failed to parse mirror url", urlResult.exceptionOrNull())
+            logAndUpdateState(context.getString(R.string.update_transfer_error))
+            return
+        }
+        val mirrorSelector = MirrorSelector(downloadHttpClient, urlResult.getOrThrow())
+        if (mirrors.isEmpty() || !mirrorSelector.rankMirrors()) {
+            Log.e(TAG, "No mirror to stream from, mirrors = $mirrors")
+            logAndUpdateState(context.getString(R.string.update_transfer_error))
+            return
+        }
+        // Never null here, mirrors are only marked as failed by onFailure()
+        val url = mirrorSelector.current!!
+        logD("streaming from $url")
+        val payloadInfoResult = PayloadInfo.Factory.createRemotePayloadInfo(
+            context,
+            RemoteZipReader(okHttpClient, url.toString())
+        )
+        if (payloadInfoResult.isFailure) {
+            logAndUpdateState(
+                context.getString(
+                    R.string.payload_generation_failed,
+                    payloadInfoResult.exceptionOrNull()?.localizedMessage
+                )
+            )
+            return
         }
+        // Cancelled while the payload info was being fetched
+        if (updateStateInternal.value !is UpdateState.Initializing) return
+        applyPayload(payloadInfoResult.getOrThrow())
+    }
+
+    private fun applyPayload(payloadInfo: PayloadInfo) {
+        bindUpdateEngine()
         try {
             updateEngine.applyPayload(
                 payloadInfo.filePath,
@@ -175,6 +278,13 @@ class ABUpdateManager @Inject constructor(
         }
     }
 
+    private fun bindUpdateEngine() {
+        updateEngine.apply {
+            setPerformanceMode(true)
+            bind(updateEngineCallback)
+        }
+    }
+
     override fun pause() {
         logD("Pause: updateScheduled = $updateScheduled, isUpdatePaused = $isUpdatePaused")
         if (!updateScheduled || isUpdatePaused) return
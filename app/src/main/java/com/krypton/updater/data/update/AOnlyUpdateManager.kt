@@ -17,6 +17,7 @@
 package com.krypton.updater.data.update
 
 import android.content.Context
+import android.net.Uri
 import android.os.RecoverySystem
 import android.os.SystemUpdateManager
 
@@ -42,6 +43,11 @@ class AOnlyUpdateManager @Inject constructor(
 
     override val supportsUpdateSuspension = false
 
+    override val supportsStreaming = false
+
+    // Recovery can only install packages from the ota package dir
+    override val supportsInPlaceUpdate = false
+
     private var updateScheduled = false
 
     private var updateThread: UpdateThread? = null
@@ -91,6 +97,14 @@ class AOnlyUpdateManager @Inject constructor(
         }
     }
 
+    override fun startInPlace(uri: Uri) {
+        logAndUpdateState(context.getString(R.string.in_place_update_not_supported))
+    }
+
+    override suspend fun startStreaming(mirrors: List<String>) {
+        logAndUpdateState(context.getString(R.string.streaming_not_supported))
+    }
+
     override fun pause() {
         throw UnsupportedOperationException()
     }
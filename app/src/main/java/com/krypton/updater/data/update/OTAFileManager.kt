@@ -20,10 +20,13 @@ import android.content.Context
 import android.net.Uri
 import android.os.Environment
 import android.os.FileUtils
+import android.system.ErrnoException
+import android.system.Os
 import android.system.OsConstants
 import android.util.Log
 
 import com.krypton.updater.data.FilePermissionHelper
+import com.krypton.updater.data.download.FanOutCopier
 import dagger.hilt.android.qualifiers.ApplicationContext
 
 import java.io.File
@@ -41,6 +44,13 @@ class OTAFileManager @Inject constructor(
     val otaFile = File(otaPackageDir, UPDATE_FILE)
     val otaFileUri: Uri = Uri.fromFile(otaFile)
 
+    /**
+     * Directory inside [otaPackageDir] into which updates can be downloaded.
+     * Files created here share the filesystem and the security context
+     * of [otaFile], so they can be staged with a hardlink instead of a copy.
+     */
+    val downloadDir = File(otaPackageDir, DOWNLOAD_DIR)
+
     init {
         if (!otaPackageDir.isDirectory) {
             throw RuntimeException("OTA package dir ${otaPackageDir.absolutePath} does not exist")
@@ -48,6 +58,9 @@ class OTAFileManager @Inject constructor(
         if (!FilePermissionHelper.checkRWX(otaPackageDir)) {
             throw RuntimeException("No rwx permission for ${otaPackageDir.absolutePath}")
         }
+        if (!downloadDir.isDirectory && !downloadDir.mkdir()) {
+            Log.e(TAG, "Failed to create ${downloadDir.absolutePath}")
+        }
     }
 
     /**
@@ -58,7 +71,7 @@ class OTAFileManager @Inject constructor(
      * @return true if copying was successful, false if not.
      */
     fun copyToOTAPackageDir(uri: Uri): Result<Unit> {
-        if (!wipe()) {
+        if (!deleteOTAFile()) {
             return Result.failure(Throwable("Failed to wipe working directory"))
         }
         return runCatching {
@@ -79,13 +92,81 @@ class OTAFileManager @Inject constructor(
     }
 
     /**
-     * Deletes all files inside the ota package directory.
+     * Stage a downloaded file as [otaFile] with a hardlink, so that no data
+     * has to be copied. Only files in [downloadDir] can be linked.
+     * Should not be called from main thread.
+     *
+     * @param file the downloaded file.
+     * @return true if the file was staged, false if it has to be copied.
+     */
+    fun linkFile(file: File): Boolean {
+        if (file.parentFile != downloadDir || !deleteOTAFile()) {
+            return false
+        }
+        try {
+            Os.link(file.absolutePath, otaFile.absolutePath)
+        } catch (e: ErrnoException) {
+            Log.w(TAG, "Failed to link ${file.absolutePath}, copying instead", e)
+            return false
+        }
+        return setOTAFilePermissions().isSuccess
+    }
+
+    /**
+     * Create a [FanOutCopier.Sink] that stages the copied file as [otaFile].
+     * Should not be called from main thread.
+     *
+     * @return a [Result] of the sink.
+     */
+    fun createStagingSink(): Result<FanOutCopier.Sink> {
+        if (!deleteOTAFile()) {
+            return Result.failure(Throwable("Failed to wipe working directory"))
+        }
+        return Result.success(
+            FanOutCopier.Sink(
+                name = otaFile.absolutePath,
+                open = { otaFile.outputStream() },
+                openForReadBack = { otaFile.inputStream() },
+                onFinished = { result ->
+                    val finalResult = result.mapCatching { setOTAFilePermissions().getOrThrow() }
+                    if (finalResult.isFailure) deleteOTAFile()
+                    finalResult
+                }
+            )
+        )
+    }
+
+    private fun setOTAFilePermissions(): Result<Unit> {
+        val errno: Int = FilePermissionHelper.setPermissions(
+            otaFile,
+            OsConstants.S_IRWXU or OsConstants.S_IRWXG,
+        )
+        if (errno != 0) {
+            Log.e(TAG, "setPermissions failed with errno $errno")
+            return Result.failure(Throwable("Setting permissions failed"))
+        }
+        return Result.success(Unit)
+    }
+
+    private fun deleteOTAFile(): Boolean {
+        if (otaFile.exists() && !otaFile.delete()) {
+            Log.e(TAG, "Deleting ${otaFile.absolutePath} failed")
+            return false
+        }
+        return true
+    }
+
+    /**
+     * Deletes all files inside the ota package directory,
+     * including the downloads in [downloadDir].
      *
      * @return true if all files were deleted, false if failed for some or all.
      */
     fun wipe(): Boolean {
         var success = true
-        otaPackageDir.listFiles()?.forEach {
+        val files = (otaPackageDir.listFiles() ?: emptyArray()) +
+                (downloadDir.listFiles() ?: emptyArray())
+        files.filter { it != downloadDir }.forEach {
             if (!it.delete()) {
                 Log.e(TAG, "Deleting ${it.absolutePath} failed")
                 success = false
@@ -98,5 +179,6 @@ class OTAFileManager @Inject constructor(
         private const val TAG = "OTAFileManager"
         private const val OTA_DIR = "kosp_ota"
         private const val UPDATE_FILE = "update.zip"
+        private const val DOWNLOAD_DIR = "downloads"
     }
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.update
+
+import android.content.Context
+
+import com.krypton.updater.R
+import com.krypton.updater.data.DeviceInfo
+
+/**
+ * Properties of an OTA package, as listed in it's metadata file.
+ */
+class OTAMetadata private constructor(
+    private val properties: Map<String, String>
+) {
+
+    /**
+     * Devices the package can be installed on.
+     */
+    val preDevices: List<String>
+        get() = properties[PRE_DEVICE].toList()
+
+    /**
+     * Fingerprints of the builds an incremental package applies on,
+     * empty for full packages.
+     */
+    val preBuilds: List<String>
+        get() = properties[PRE_BUILD].toList()
+
+    /**
+     * Build date of the package as unix timestamp (seconds since epoch).
+     */
+    val postTimestamp: Long?
+        get() = properties[POST_TIMESTAMP]?.toLongOrNull()
+
+    /**
+     * Whether the package is signed as a downgrade, which
+     * update_engine accepts regardless of [postTimestamp].
+     */
+    val isDowngrade: Boolean
+        get() = properties[OTA_DOWNGRADE] == "yes"
+
+    /**
+     * Offset and size of the payload in the zip file,
+     * null if the package doesn't list it.
+     */
+    val payloadOffsetAndSize: Pair<Long, Long>?
+        get() {
+            // Entries are in the form of <file name>:<offset>:<size>
+            val list = properties[PROPERTY_FILES].toList()
+                .firstOrNull { it.startsWith("$PAYLOAD_FILE_NAME:") }
+                ?.split(':')
+                ?: return null
+            if (list.size != 3) return null
+            val offset = list[1].toLongOrNull() ?: return null
+            val size = list[2].toLongOrNull() ?: return null
+            return Pair(offset, size)
+        }
+
+    /**
+     * Check whether the package can be installed on this device.
+     *
+     * @return a [Result] that represents a failure with
+     *   the reason if the package is not compatible.
+     */
+    fun checkCompatibility(context: Context): Result<Unit> {
+        val device = DeviceInfo.getProductDevice()
+        if (preDevices.isNotEmpty() && !preDevices.contains(device)) {
+            return Result.failure(
+                Throwable(context.getString(R.string.update_not_for_device, preDevices.joinToString(), device))
+            )
+        }
+        if (preBuilds.isNotEmpty() && !preBuilds.contains(DeviceInfo.getFingerprint())) {
+            return Result.failure(Throwable(context.getString(R.string.update_pre_build_mismatch)))
+        }
+        val timestamp = postTimestamp
+        if (!isDowngrade && timestamp != null && timestamp * 1000 < DeviceInfo.getBuildDate()) {
+            return Result.failure(Throwable(context.getString(R.string.downgrading_not_allowed)))
+        }
+        return Result.success(Unit)
+    }
+
+    companion object {
+        // Metadata file path in the zip file
+        const val METADATA_FILE = "META-INF/com/android/metadata"
+
+        private const val PAYLOAD_FILE_NAME = "payload.bin"
+
+        private const val PRE_DEVICE = "pre-device"
+        private const val PRE_BUILD = "pre-build"
+        private const val POST_TIMESTAMP = "post-timestamp"
+        private const val PROPERTY_FILES = "ota-property-files"
+        private const val OTA_DOWNGRADE = "ota-downgrade"
+
+        /**
+         * Parse the contents of a metadata file, one key=value pair per line.
+         */
+        fun parse(text: String) = OTAMetadata(
+            text.lineSequence()
+                .map { it.trim() }
+                .filter { it.contains('=') }
+                .associate { it.substringBefore('=') to it.substringAfter('=') }
+        )
+
+        /**
+         * Read and parse the metadata file of a remote zip.
+         *
+         * @return the [OTAMetadata], or null if the zip doesn't have a metadata file.
+         * @throws java.io.IOException if the zip could not be read.
+         */
+        suspend fun fromRemoteZip(zipReader: RemoteZipReader): OTAMetadata? {
+            val entry = zipReader.getEntry(METADATA_FILE) ?: return null
+            return parse(String(zipReader.readEntry(entry)))
+        }
+
+        private fun String?.toList(): List<String> =
+            this?.split(',')?.map { it.trim() }?.filter { it.isNotEmpty() } ?: emptyList()
+    }
+}
@@ -18,12 +18,16 @@ package com.krypton.updater.data.update
 
 import android.content.Context
 import android.net.Uri
+import android.os.ParcelFileDescriptor
 import android.util.Log
 
 import com.krypton.updater.R
 
+import java.util.zip.ZipEntry
 import java.util.zip.ZipFile
 
+import kotlinx.coroutines.CancellationException
+
 class PayloadInfo private constructor(
     val filePath: String,
     val offset: Long,
@@ -35,14 +39,9 @@ class PayloadInfo private constructor(
         private val DEBUG: Boolean
             get() = Log.isLoggable(TAG, Log.DEBUG)
 
-        // Metadata file path in the zip file
-        private const val METADATA_FILE = "META-INF/com/android/metadata"
-
         // File name of payload
         private const val PAYLOAD_FILE_NAME = "payload.bin"
 
-        private val PAYLOAD_OFFSET_REGEX = Regex("$PAYLOAD_FILE_NAME:[0-9]+:[0-9]+")
-
         // Text file containing header info
         private const val PAYLOAD_PROPERTIES_FILE = "payload_properties.txt"
 
@@ -56,9 +55,40 @@ class PayloadInfo private constructor(
          */
         fun createPayloadInfo(context: Context, uri: Uri): Result<PayloadInfo> {
             logD("uri = $uri")
+            return createPayloadInfo(context, uri.path!!, uri.toString())
+        }
+
+        /**
+         * Generate a [PayloadInfo] with information parsed from the
+         * file opened as [pfd], without needing access to it's path.
+         * Should not be called from main thread.
+         *
+         * @param pfd the [ParcelFileDescriptor] of the zip file.
+         * @return a [Result] of [PayloadInfo]. [PayloadInfo.filePath]
+         *   is only valid while [pfd] is open.
+         */
+        fun createPayloadInfo(context: Context, pfd: ParcelFileDescriptor): Result<PayloadInfo> {
+            val path = "/proc/self/fd/${pfd.fd}"
+            logD("fd path = $path")
+            return createPayloadInfo(context, path, path)
+        }
+
+        private fun createPayloadInfo(
+            context: Context,
+            zipPath: String,
+            filePath: String
+        ): Result<PayloadInfo> {
             return runCatching {
-                ZipFile(uri.path).use { zipFile ->
-                    val offsetSizePairResult = getOffsetAndSize(context, zipFile)
+                ZipFile(zipPath).use { zipFile ->
+                    val metadataResult = readMetadata(context, zipFile)
+                    if (metadataResult.isFailure) {
+                        return Result.failure(metadataResult.exceptionOrNull()!!)
+                    }
+                    val metadata = metadataResult.getOrThrow()
+                    metadata.checkCompatibility(context).onFailure {
+                        return Result.failure(it)
+                    }
+                    val offsetSizePairResult = getOffsetAndSize(context, metadata)
                     if (offsetSizePairResult.isFailure) {
                         return Result.failure(
                             offsetSizePairResult.exceptionOrNull()
@@ -74,7 +104,7 @@ class PayloadInfo private constructor(
                     }
                     val offsetSizePair = offsetSizePairResult.getOrThrow()
                     PayloadInfo(
-                        uri.toString(),
+                        filePath,
                         offsetSizePair.first,
                         offsetSizePair.second,
                         headerKeyValuePairResult.getOrThrow()
@@ -83,23 +113,88 @@ class PayloadInfo private constructor(
             }
         }
 
-        private fun getOffsetAndSize(context: Context, zipFile: ZipFile): Result<Pair<Long, Long>> {
-            val metadata = zipFile.getEntry(METADATA_FILE)
+        /**
+         * Generate a [PayloadInfo] for a zip file on a server, so that
+         * update_engine can stream the payload straight from it's url.
+         * Only the central directory and the small entries are fetched,
+         * and the package is checked against this device on the way.
+         *
+         * @param zipReader the [RemoteZipReader] for the zip file.
+         * @return a [Result] of [PayloadInfo].
+         */
+        suspend fun createRemotePayloadInfo(
+            context: Context,
+            zipReader: RemoteZipReader
+        ): Result<PayloadInfo> {
+            logD("url = ${zipReader.url}")
+            return try {
+                val metadata = OTAMetadata.fromRemoteZip(zipReader)
+                    ?: return Result.failure(Throwable(context.getString(R.string.zip_does_not_contain_metadata_file)))
+                metadata.checkCompatibility(context).onFailure {
+                    return Result.failure(it)
+                }
+                val payload = zipReader.getEntry(PAYLOAD_FILE_NAME)
+                    ?: return Result.failure(Throwable(context.getString(R.string.zip_does_not_contain_payload)))
+                // update_engine reads the payload as is, it can't be compressed
+                if (payload.method != ZipEntry.STORED) {
+                    return Result.failure(Throwable(context.getString(R.string.payload_is_compressed)))
+                }
+                val payloadProps = zipReader.getEntry(PAYLOAD_PROPERTIES_FILE) ?: return Result.failure(
+                    Throwable(context.getString(R.string.zip_file_does_not_contain_payload_properties))
+                )
+                val headerKeyValuePairs = parseHeaderKeyValuePairs(
+                    String(zipReader.readEntry(payloadProps)).lines()
+                ) ?: return Result.failure(
+                    Throwable(context.getString(R.string.payload_properties_file_does_not_have_key_value_pairs))
+                )
+                // Saves a request for the local header if the metadata lists the offset
+                val offsetSizePair = metadata.payloadOffsetAndSize
+                    ?: Pair(zipReader.getDataOffset(payload), payload.size)
+                Result.success(
+                    PayloadInfo(
+                        zipReader.url,
+                        offsetSizePair.first,
+                        offsetSizePair.second,
+                        headerKeyValuePairs
+                    )
+                )
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Result.failure(e)
+            }
+        }
+
+        /**
+         * Read the metadata of a local update zip.
+         *
+         * @param zipFile the update zip.
+         * @return a [Result] of [OTAMetadata].
+         */
+        fun readMetadata(context: Context, zipFile: ZipFile): Result<OTAMetadata> {
+            val metadata = zipFile.getEntry(OTAMetadata.METADATA_FILE)
                 ?: return Result.failure(Throwable(context.getString(R.string.zip_does_not_contain_metadata_file)))
             return runCatching {
                 zipFile.getInputStream(metadata).bufferedReader().use { reader ->
-                    val line =
-                        reader.readLine()
-                            ?: return Result.failure(Throwable(context.getString(R.string.metadata_file_empty)))
-                    logD("metadata line = $line")
-                    val offsetSizeString = PAYLOAD_OFFSET_REGEX.find(line)?.value
-                        ?: return Result.failure(Throwable(context.getString(R.string.failed_to_extract_offset_and_size)))
-                    val list = offsetSizeString.split(':')
-                    Pair(list[1].toLong(), list[2].toLong())
+                    val text = reader.readText()
+                    if (text.isBlank()) {
+                        return Result.failure(Throwable(context.getString(R.string.metadata_file_empty)))
+                    }
+                    logD("metadata = $text")
+                    OTAMetadata.parse(text)
                 }
             }
         }
 
+        private fun getOffsetAndSize(
+            context: Context,
+            metadata: OTAMetadata
+        ): Result<Pair<Long, Long>> {
+            val offsetSizePair = metadata.payloadOffsetAndSize
+                ?: return Result.failure(Throwable(context.getString(R.string.failed_to_extract_offset_and_size)))
+            return Result.success(offsetSizePair)
+        }
+
         private fun getHeaderKeyValuePairs(
             context: Context,
             zipFile: ZipFile
@@ -109,15 +204,19 @@ class PayloadInfo private constructor(
             )
             return runCatching {
                 zipFile.getInputStream(payloadProps).bufferedReader().use { reader ->
-                    val fileContent = reader.readLines().filter { it.isNotBlank() }
-                    if (fileContent.size != 4) return Result.failure(
+                    parseHeaderKeyValuePairs(reader.readLines()) ?: return Result.failure(
                         Throwable(context.getString(R.string.payload_properties_file_does_not_have_key_value_pairs))
                     )
-                    fileContent.toTypedArray()
                 }
             }
         }
 
+        private fun parseHeaderKeyValuePairs(lines: List<String>): Array<String>? {
+            val fileContent = lines.filter { it.isNotBlank() }
+            if (fileContent.size != 4) return null
+            return fileContent.toTypedArray()
+        }
+
         private fun logD(msg: String) {
             if (DEBUG) Log.d(TAG, msg)
         }
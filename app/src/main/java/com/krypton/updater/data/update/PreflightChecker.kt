@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.update
+
+import android.content.Context
+import android.net.Uri
+import android.util.Log
+
+import com.krypton.updater.R
+import com.krypton.updater.data.DeviceInfo
+
+import dagger.hilt.android.qualifiers.ApplicationContext
+
+import java.io.IOException
+import java.util.zip.ZipFile
+
+import javax.inject.Inject
+import javax.inject.Singleton
+
+import kotlinx.coroutines.CancellationException
+
+import okhttp3.OkHttpClient
+
+/**
+ * Inspects an update zip before it is downloaded or copied, so that a
+ * package that can't be installed on this device is rejected for a few
+ * KB of reads instead of after a multi-GB transfer.
+ */
+@Singleton
+class PreflightChecker @Inject constructor(
+    @ApplicationContext private val context: Context,
+    private val okHttpClient: OkHttpClient,
+) {
+
+    /**
+     * Check the metadata of the zip at [url] against this device and, on A/B
+     * devices, make sure that the payload can be located. The zip not being
+     * readable (like when the server doesn't support range requests) is not
+     * treated as a failure, the download itself can still work.
+     *
+     * @param url the url of the update zip.
+     * @return a [Result] that represents a failure with the reason
+     *   if the update can not be installed.
+     */
+    suspend fun check(url: String): Result<Unit> {
+        logD("checking $url")
+        val zipReader = RemoteZipReader(okHttpClient, url)
+        return try {
+            if (DeviceInfo.isAB()) {
+                // Checks the metadata as well
+                PayloadInfo.Factory.createRemotePayloadInfo(context, zipReader).onFailure {
+                    if (it is IOException) throw it
+                    return Result.failure(it)
+                }
+            } else {
+                val metadata = OTAMetadata.fromRemoteZip(zipReader) ?: return Result.failure(
+                    Throwable(context.getString(R.string.zip_does_not_contain_metadata_file))
+                )
+                metadata.checkCompatibility(context).onFailure {
+                    return Result.failure(it)
+                }
+            }
+            Result.success(Unit)
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: IOException) {
+            Log.w(TAG, "Unable to inspect $url, ${e.message}")
+            Result.success(Unit)
+        }
+    }
+
+    /**
+     * Check a local update zip, like one picked for a local upgrade, against
+     * this device. Only the metadata and the payload properties are read,
+     * straight from a file descriptor of [uri]. Should not be called from
+     * main thread.
+     *
+     * @param uri the [Uri] of the update zip.
+     * @return a [Result] that represents a failure with the reason
+     *   if the update can not be installed.
+     */
+    fun check(uri: Uri): Result<Unit> {
+        logD("checking $uri")
+        val pfd = try {
+            context.contentResolver.openFileDescriptor(uri, "r")
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to open $uri", e)
+            null
+        } catch (e: SecurityException) {
+            Log.e(TAG, "No permission to open $uri", e)
+            null
+        } ?: return Result.failure(Throwable(context.getString(R.string.failed_to_open_update_file)))
+        return pfd.use {
+            if (DeviceInfo.isAB()) {
+                // Checks the metadata as well
+                PayloadInfo.Factory.createPayloadInfo(context, it).map { }
+            } else {
+                runCatching {
+                    ZipFile("/proc/self/fd/${it.fd}").use { zipFile ->
+                        PayloadInfo.Factory.readMetadata(context, zipFile).getOrThrow()
+                            .checkCompatibility(context)
+                            .getOrThrow()
+                    }
+                }
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "PreflightChecker"
+        private val DEBUG: Boolean
+            get() = Log.isLoggable(TAG, Log.DEBUG)
+
+        private fun logD(msg: String) {
+            if (DEBUG) Log.d(TAG, msg)
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.update
+
+import android.util.DataUnit
+import android.util.Log
+
+import com.krypton.updater.data.await
+
+import java.io.IOException
+import java.net.HttpURLConnection
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.zip.DataFormatException
+import java.util.zip.Inflater
+import java.util.zip.ZipEntry
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.runInterruptible
+
+import okhttp3.OkHttpClient
+import okhttp3.Request
+
+/**
+ * Reads a zip file served over HTTP(S) with range requests. Only the
+ * central directory and the entries asked for are fetched, so the
+ * metadata of a multi-GB OTA costs a few small requests.
+ *
+ * @param url the url of the zip file. The server must support range requests.
+ */
+class RemoteZipReader(
+    private val okHttpClient: OkHttpClient,
+    val url: String,
+) {
+
+    /**
+     * An entry in the central directory of the zip file.
+     *
+     * @property localHeaderOffset offset of the local file header
+     *   from the start of the zip file.
+     */
+    class Entry(
+        val name: String,
+        val method: Int,
+        val compressedSize: Long,
+        val size: Long,
+        val localHeaderOffset: Long,
+    )
+
+    private var entries: Map<String, Entry>? = null
+
+    /**
+     * Get the entry with the given [name], reading the
+     * central directory on first use.
+     *
+     * @throws IOException if the central directory could not be read.
+     */
+    suspend fun getEntry(name: String): Entry? =
+        (entries ?: readCentralDirectory().also { entries = it })[name]
+
+    /**
+     * Offset of the data of [entry] from the start of the zip file.
+     *
+     * @throws IOException if the local file header could not be read.
+     */
+    suspend fun getDataOffset(entry: Entry): Long {
+        val header = readRange(entry.localHeaderOffset, LOCAL_HEADER_SIZE.toLong())
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw IOException("Invalid local header for ${entry.name}")
+        }
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE +
+                header.getUnsignedShort(LOCAL_HEADER_NAME_LENGTH) +
+                header.getUnsignedShort(LOCAL_HEADER_EXTRA_LENGTH)
+    }
+
+    /**
+     * Read and decompress the contents of a small [entry].
+     *
+     * @throws IOException if the entry could not be read.
+     */
+    suspend fun readEntry(entry: Entry): ByteArray {
+        if (entry.size > MAX_ENTRY_SIZE || entry.compressedSize > MAX_ENTRY_SIZE) {
+            throw IOException("${entry.name} is too large to be read")
+        }
+        val data = readRange(getDataOffset(entry), entry.compressedSize).array()
+        return when (entry.method) {
+            ZipEntry.STORED -> data
+            ZipEntry.DEFLATED -> inflate(data, entry.size.toInt())
+            else -> throw IOException("Unsupported compression method ${entry.method} for ${entry.name}")
+        }
+    }
+
+    private suspend fun readCentralDirectory(): Map<String, Entry> {
+        val tail = readTail(EOCD_SIZE + MAX_COMMENT_SIZE)
+        val buffer = tail.buffer
+        val eocdPos = (buffer.limit() - EOCD_SIZE downTo 0).firstOrNull {
+            buffer.getInt(it) == EOCD_SIGNATURE
+        } ?: throw IOException("End of central directory not found in $url")
+        var cdSize = buffer.getUnsignedInt(eocdPos + EOCD_CD_SIZE)
+        var cdOffset = buffer.getUnsignedInt(eocdPos + EOCD_CD_OFFSET)
+        if (cdSize == ZIP64_MAGIC || cdOffset == ZIP64_MAGIC) {
+            val locatorPos = eocdPos - ZIP64_LOCATOR_SIZE
+            if (locatorPos < 0 || buffer.getInt(locatorPos) != ZIP64_LOCATOR_SIGNATURE) {
+                throw IOException("Zip64 end of central directory locator not found in $url")
+            }
+            val zip64Eocd = readRange(
+                buffer.getLong(locatorPos + ZIP64_LOCATOR_EOCD_OFFSET),
+                ZIP64_EOCD_SIZE.toLong()
+            )
+            if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw IOException("Invalid zip64 end of central directory in $url")
+            }
+            cdSize = zip64Eocd.getLong(ZIP64_EOCD_CD_SIZE)
+            cdOffset = zip64Eocd.getLong(ZIP64_EOCD_CD_OFFSET)
+        }
+        logD("central directory offset = $cdOffset, size = $cdSize")
+        if (cdSize > MAX_CENTRAL_DIRECTORY_SIZE) {
+            throw IOException("Central directory of $url is too large")
+        }
+        // The central directory is usually covered by the tail already
+        val centralDirectory = if (cdOffset >= tail.start &&
+            cdOffset + cdSize <= tail.start + buffer.limit()
+        ) {
+            val start = (cdOffset - tail.start).toInt()
+            ByteBuffer.wrap(buffer.array(), start, cdSize.toInt())
+                .slice()
+                .order(ByteOrder.LITTLE_ENDIAN)
+        } else {
+            readRange(cdOffset, cdSize)
+        }
+        return parseCentralDirectory(centralDirectory)
+    }
+
+    private fun parseCentralDirectory(buffer: ByteBuffer): Map<String, Entry> {
+        val entries = mutableMapOf<String, Entry>()
+        var pos = 0
+        while (pos + CD_HEADER_SIZE <= buffer.limit() &&
+            buffer.getInt(pos) == CD_HEADER_SIGNATURE
+        ) {
+            val nameLength = buffer.getUnsignedShort(pos + CD_NAME_LENGTH)
+            val extraLength = buffer.getUnsignedShort(pos + CD_EXTRA_LENGTH)
+            val commentLength = buffer.getUnsignedShort(pos + CD_COMMENT_LENGTH)
+            val name = String(
+                buffer.array(),
+                buffer.arrayOffset() + pos + CD_HEADER_SIZE,
+                nameLength,
+                Charsets.UTF_8
+            )
+            var compressedSize = buffer.getUnsignedInt(pos + CD_COMPRESSED_SIZE)
+            var size = buffer.getUnsignedInt(pos + CD_SIZE)
+            var localHeaderOffset = buffer.getUnsignedInt(pos + CD_LOCAL_HEADER_OFFSET)
+            // Values that don't fit are moved to the zip64 extra field, in this order
+            var extraPos = pos + CD_HEADER_SIZE + nameLength
+            val extraEnd = extraPos + extraLength
+            while (extraPos + EXTRA_HEADER_SIZE <= extraEnd) {
+                val id = buffer.getUnsignedShort(extraPos)
+                val dataSize = buffer.getUnsignedShort(extraPos + 2)
+                if (id == ZIP64_EXTRA_ID) {
+                    var fieldPos = extraPos + EXTRA_HEADER_SIZE
+                    if (size == ZIP64_MAGIC) {
+                        size = buffer.getLong(fieldPos)
+                        fieldPos += Long.SIZE_BYTES
+                    }
+                    if (compressedSize == ZIP64_MAGIC) {
+                        compressedSize = buffer.getLong(fieldPos)
+                        fieldPos += Long.SIZE_BYTES
+                    }
+                    if (localHeaderOffset == ZIP64_MAGIC) {
+                        localHeaderOffset = buffer.getLong(fieldPos)
+                    }
+                    break
+                }
+                extraPos += EXTRA_HEADER_SIZE + dataSize
+            }
+            entries[name] = Entry(
+                name,
+                buffer.getUnsignedShort(pos + CD_METHOD),
+                compressedSize,
+                size,
+                localHeaderOffset
+            )
+            pos += CD_HEADER_SIZE + nameLength + extraLength + commentLength
+        }
+        logD("found ${entries.size} entries")
+        return entries.toMap()
+    }
+
+    private class Tail(val start: Long, val buffer: ByteBuffer)
+
+    private suspend fun readTail(length: Int): Tail {
+        val request = Request.Builder()
+            .url(url)
+            .header("Range", "bytes=-$length")
+            .build()
+        return okHttpClient.newCall(request).await().use { response ->
+            if (response.code != HttpURLConnection.HTTP_PARTIAL) {
+                throw IOException("Range request to $url failed with code ${response.code}")
+            }
+            // Content-Range: bytes <start>-<end>/<total>
+            val start = response.header("Content-Range")
+                ?.substringAfter(' ')
+                ?.substringBefore('-')
+                ?.toLongOrNull()
+                ?: throw IOException("Invalid Content-Range from $url")
+            val bytes = runInterruptible(Dispatchers.IO) { response.body!!.bytes() }
+            Tail(start, ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN))
+        }
+    }
+
+    private suspend fun readRange(start: Long, length: Long): ByteBuffer {
+        val request = Request.Builder()
+            .url(url)
+            .header("Range", "bytes=$start-${start + length - 1}")
+            .build()
+        val bytes = okHttpClient.newCall(request).await().use { response ->
+            if (response.code != HttpURLConnection.HTTP_PARTIAL) {
+                throw IOException("Range request to $url failed with code ${response.code}")
+            }
+            runInterruptible(Dispatchers.IO) { response.body!!.bytes() }
+        }
+        if (bytes.size.toLong() != length) {
+            throw IOException("Expected $length bytes from $url, got ${bytes.size}")
+        }
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+    }
+
+    companion object {
+        private const val TAG = "RemoteZipReader"
+        private val DEBUG: Boolean
+            get() = Log.isLoggable(TAG, Log.DEBUG)
+
+        private const val EOCD_SIGNATURE = 0x06054b50
+        private const val EOCD_SIZE = 22
+        private const val EOCD_CD_SIZE = 12
+        private const val EOCD_CD_OFFSET = 16
+        private const val MAX_COMMENT_SIZE = 0xFFFF
+
+        private const val ZIP64_LOCATOR_SIGNATURE = 0x07064b50
+        private const val ZIP64_LOCATOR_SIZE = 20
+        private const val ZIP64_LOCATOR_EOCD_OFFSET = 8
+
+        private const val ZIP64_EOCD_SIGNATURE = 0x06064b50
+        private const val ZIP64_EOCD_SIZE = 56
+        private const val ZIP64_EOCD_CD_SIZE = 40
+        private const val ZIP64_EOCD_CD_OFFSET = 48
+
+        private const val ZIP64_MAGIC = 0xFFFFFFFFL
+        private const val ZIP64_EXTRA_ID = 0x0001
+        private const val EXTRA_HEADER_SIZE = 4
+
+        private const val CD_HEADER_SIGNATURE = 0x02014b50
+        private const val CD_HEADER_SIZE = 46
+        private const val CD_METHOD = 10
+        private const val CD_COMPRESSED_SIZE = 20
+        private const val CD_SIZE = 24
+        private const val CD_NAME_LENGTH = 28
+        private const val CD_EXTRA_LENGTH = 30
+        private const val CD_COMMENT_LENGTH = 32
+        private const val CD_LOCAL_HEADER_OFFSET = 42
+
+        private const val LOCAL_HEADER_SIGNATURE = 0x04034b50
+        private const val LOCAL_HEADER_SIZE = 30
+        private const val LOCAL_HEADER_NAME_LENGTH = 26
+        private const val LOCAL_HEADER_EXTRA_LENGTH = 28
+
+        // OTA packages have a few hundred entries at most
+        private val MAX_CENTRAL_DIRECTORY_SIZE = DataUnit.MEBIBYTES.toBytes(1)
+
+        // Only small text entries like the metadata are meant to be read
+        private val MAX_ENTRY_SIZE = DataUnit.MEBIBYTES.toBytes(1)
+
+        private fun ByteBuffer.getUnsignedShort(index: Int): Int =
+            getShort(index).toInt() and 0xFFFF
+
+        private fun ByteBuffer.getUnsignedInt(index: Int): Long =
+            getInt(index).toLong() and 0xFFFFFFFFL
+
+        private fun inflate(data: ByteArray, size: Int): ByteArray {
+            val inflater = Inflater(true /* nowrap */)
+            try {
+                inflater.setInput(data)
+                val result = ByteArray(size)
+                var length = 0
+                while (length < size && !inflater.finished()) {
+                    val count = inflater.inflate(result, length, size - length)
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break
+                    }
+                    length += count
+                }
+                if (length != size) throw IOException("Inflated size mismatch")
+                return result
+            } catch (e: DataFormatException) {
+                throw IOException("Failed to inflate entry", e)
+            } finally {
+                inflater.end()
+            }
+        }
+
+        private fun logD(msg: String) {
+            if (DEBUG) Log.d(TAG, msg)
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.krypton.updater.data.update
 
 import android.content.Context
+import android.net.Uri
 import android.os.PersistableBundle
 import android.os.SystemUpdateManager
 import android.os.UpdateLock
@@ -53,6 +54,10 @@ sealed class UpdateManager(
 
     abstract val supportsUpdateSuspension: Boolean
 
+    abstract val supportsStreaming: Boolean
+
+    abstract val supportsInPlaceUpdate: Boolean
+
     protected var progress = 0f
 
     private val systemUpdateService = context.getSystemService(SystemUpdateManager::class.java)
@@ -108,6 +113,22 @@ sealed class UpdateManager(
 
     abstract fun start()
 
+    /**
+     * Install an update zip right where it is, instead of the
+     * copy staged by [OTAFileManager]. Should not be called from main thread.
+     *
+     * @param uri the [Uri] of the update zip, file:// or content://.
+     */
+    abstract fun startInPlace(uri: Uri)
+
+    /**
+     * Install an update by streaming it's payload straight from a server,
+     * without downloading the zip first.
+     *
+     * @param mirrors the urls of the update zip. The fastest one is used.
+     */
+    abstract suspend fun startStreaming(mirrors: List<String>)
+
     abstract fun pause()
 
     abstract fun resume()
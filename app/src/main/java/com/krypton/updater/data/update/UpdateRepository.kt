@@ -19,19 +19,25 @@ package com.krypton.updater.data.update
 import android.content.Context
 import android.net.Uri
 
+import com.krypton.updater.data.BuildInfo
 import com.krypton.updater.data.FileCopyStatus
+import com.krypton.updater.data.MainRepository
+import com.krypton.updater.data.download.DownloadFileCopier
 import com.krypton.updater.data.download.DownloadManager
 import com.krypton.updater.data.download.DownloadState
 import com.krypton.updater.data.savedStateDataStore
 
 import dagger.hilt.android.qualifiers.ApplicationContext
 
+import java.io.File
+
 import javax.inject.Inject
 import javax.inject.Singleton
 
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.launch
@@ -44,6 +50,9 @@ class UpdateRepository @Inject constructor(
     private val updateManager: UpdateManager,
     private val otaFileManager: OTAFileManager,
     private val downloadManager: DownloadManager,
+    private val mainRepository: MainRepository,
+    private val preflightChecker: PreflightChecker,
+    private val downloadFileCopier: DownloadFileCopier,
 ) {
 
     private val savedStateDataStore = context.savedStateDataStore
@@ -66,14 +75,17 @@ class UpdateRepository @Inject constructor(
     val supportsUpdateSuspension: Boolean
         get() = updateManager.supportsUpdateSuspension
 
+    val supportsStreaming: Boolean
+        get() = updateManager.supportsStreaming
+
     init {
         applicationScope.launch {
             downloadManager.downloadState.collect {
                 if (it is DownloadState.Finished) {
-                    downloadManager.downloadFile?.let { file ->
-                        withContext(Dispatchers.IO) {
-                            copyOTAFile(Uri.fromFile(file))
-                        }
+                    val file = downloadManager.downloadFile
+                    val sha512 = downloadManager.downloadSha512
+                    if (file != null && sha512 != null) {
+                        copyDownloadedFile(file, sha512)
                     }
                 } else if (it is DownloadState.Idle && updateState.value is UpdateState.Idle) {
                     _readyForUpdate.value = false
@@ -88,11 +100,40 @@ class UpdateRepository @Inject constructor(
     }
 
     suspend fun start() {
+        // Saved so that it survives process death, the staged
+        // file only exists if neither of these is set.
+        val savedState = savedStateDataStore.data.first()
+        // Retrying a failed streaming update has to stream it again
+        if (savedState.streamingMirrorsCount > 0) {
+            updateManager.startStreaming(savedState.streamingMirrorsList)
+            return
+        }
+        val uri = savedState.inPlaceUri.takeIf { it.isNotEmpty() }?.let { Uri.parse(it) }
         withContext(Dispatchers.IO) {
-            updateManager.start()
+            if (uri != null) {
+                updateManager.startInPlace(uri)
+            } else {
+                updateManager.start()
+            }
         }
     }
 
+    /**
+     * Install the saved update by streaming it from the server,
+     * skipping the download and the copy to the ota package dir.
+     *
+     * @param downloadSource the mirror to stream from. If null, the fastest
+     *   of the mirrors in [BuildInfo.downloadSources] is picked.
+     */
+    suspend fun startStreaming(downloadSource: String?) {
+        val buildInfo = mainRepository.readUpdateInfo().buildInfo ?: return
+        updateManager.reset()
+        val mirrors = buildInfo.getMirrors(downloadSource)
+        resetSavedUpdateState(streamingMirrors = mirrors)
+        _readyForUpdate.value = false
+        updateManager.startStreaming(mirrors)
+    }
+
     suspend fun pause() {
         withContext(Dispatchers.IO) {
             updateManager.pause()
@@ -118,17 +159,59 @@ class UpdateRepository @Inject constructor(
     }
 
     /**
-     * Prepare for local upgrade.
+     * Prepare for local upgrade. The file is checked against this device
+     * first, then applied in place if the device supports it, otherwise
+     * it is copied.
      *
      * @param uri the [Uri] of the update zip file.
      */
     suspend fun copyOTAFile(uri: Uri) {
+        val checkResult = withContext(Dispatchers.IO) {
+            preflightChecker.check(uri)
+        }
+        if (checkResult.isFailure) {
+            fileCopyStatus.send(FileCopyStatus.Failure(checkResult.exceptionOrNull()?.localizedMessage))
+            return
+        }
+        if (updateManager.supportsInPlaceUpdate) {
+            prepareInPlaceUpdate(uri)
+        } else {
+            stageOTAFile {
+                withContext(Dispatchers.IO) {
+                    otaFileManager.copyToOTAPackageDir(uri)
+                }
+            }
+        }
+    }
+
+    /**
+     * Export the downloaded file and stage it if it can't be
+     * applied in place, both with a single read of the file.
+     */
+    private suspend fun copyDownloadedFile(file: File, sha512: String) {
+        if (updateManager.supportsInPlaceUpdate) {
+            prepareInPlaceUpdate(Uri.fromFile(file))
+            downloadFileCopier.copy(file, sha512, stage = false)
+        } else {
+            stageOTAFile { onProgress ->
+                downloadFileCopier.copy(file, sha512, stage = true, onProgress)!!
+            }
+        }
+    }
+
+    private suspend fun prepareInPlaceUpdate(uri: Uri) {
         updateManager.reset()
-        clearSavedUpdateState()
+        resetSavedUpdateState(inPlaceUri = uri)
+        _readyForUpdate.value = true
+    }
+
+    private suspend fun stageOTAFile(stage: suspend (onProgress: (Float) -> Unit) -> Result<Unit>) {
+        updateManager.reset()
+        resetSavedUpdateState()
         _readyForUpdate.value = false
-        fileCopyStatus.send(FileCopyStatus.Copying)
-        val result = withContext(Dispatchers.IO) {
-            otaFileManager.copyToOTAPackageDir(uri)
+        fileCopyStatus.send(FileCopyStatus.Copying())
+        val result = stage {
+            fileCopyStatus.trySend(FileCopyStatus.Copying(it))
         }
         if (result.isSuccess) {
             fileCopyStatus.send(FileCopyStatus.Success)
@@ -151,11 +234,21 @@ class UpdateRepository @Inject constructor(
         }
     }
 
-    private suspend fun clearSavedUpdateState() {
+    /**
+     * Clear the state of the previous update and save where the next one
+     * is installed from. The staged file is used if neither is given.
+     */
+    private suspend fun resetSavedUpdateState(
+        inPlaceUri: Uri? = null,
+        streamingMirrors: List<String> = emptyList(),
+    ) {
         savedStateDataStore.updateData {
             it.toBuilder()
                 .clearUpdateFinished()
+                .setInPlaceUri(inPlaceUri?.toString() ?: "")
+                .clearStreamingMirrors()
+                .addAllStreamingMirrors(streamingMirrors)
                 .build()
         }
     }
-}
\ No newline at end of file
+}
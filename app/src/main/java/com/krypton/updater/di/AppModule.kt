@@ -4,11 +4,13 @@ import android.content.Context
 import android.os.UpdateEngine
 
 import androidx.room.Room
+import androidx.room.RoomDatabase
 
 import com.krypton.updater.UpdaterApp
 import com.krypton.updater.data.BatteryMonitor
 import com.krypton.updater.data.DeviceInfo
 import com.krypton.updater.data.room.AppDatabase
+import com.krypton.updater.data.room.MIGRATIONS
 import com.krypton.updater.data.update.ABUpdateManager
 import com.krypton.updater.data.update.AOnlyUpdateManager
 import com.krypton.updater.data.update.OTAFileManager
@@ -20,19 +22,75 @@ import dagger.hilt.InstallIn
 import dagger.hilt.android.qualifiers.ApplicationContext
 import dagger.hilt.components.SingletonComponent
 
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import javax.inject.Singleton
+
 import kotlinx.coroutines.CoroutineScope
 
+import okhttp3.ConnectionPool
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+
 @InstallIn(SingletonComponent::class)
 @Module
 object AppModule {
+    /**
+     * Single database shared by the whole app, so that there is one
+     * connection pool and one invalidation tracker. WAL lets the UI
+     * read while an update check is writing.
+     */
     @Provides
+    @Singleton
     fun provideAppDatabase(@ApplicationContext context: Context) = Room.databaseBuilder(
         context,
         AppDatabase::class.java,
         "updater_database"
-    ).fallbackToDestructiveMigration()
+    ).addMigrations(*MIGRATIONS)
+        .fallbackToDestructiveMigrationFrom(1, 2)
+        .fallbackToDestructiveMigrationOnDowngrade()
+        .setJournalMode(RoomDatabase.JournalMode.WRITE_AHEAD_LOGGING)
+        .setQueryExecutor(createDatabaseExecutor("db-query", MAX_QUERY_THREADS))
+        .setTransactionExecutor(createDatabaseExecutor("db-transaction", 1))
         .build()
 
+    private fun createDatabaseExecutor(name: String, threads: Int): ExecutorService {
+        val threadCount = AtomicInteger(0)
+        return Executors.newFixedThreadPool(threads) {
+            Thread(it, "$name-${threadCount.incrementAndGet()}")
+        }
+    }
+
+    /**
+     * Client shared by the update checker and the downloads, so that
+     * they reuse pooled connections and TLS sessions to the same hosts.
+     */
+    @Provides
+    @Singleton
+    fun provideOkHttpClient(): OkHttpClient = OkHttpClient.Builder()
+        .connectionPool(ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION, TimeUnit.MINUTES))
+        .connectTimeout(CONNECT_TIMEOUT, TimeUnit.SECONDS)
+        .readTimeout(READ_TIMEOUT, TimeUnit.SECONDS)
+        .retryOnConnectionFailure(true)
+        .build()
+
+    /**
+     * Client for the update file downloads. HTTP/2 would multiplex every
+     * range request to a host over a single connection, defeating the
+     * parallel segments, so this one sticks to HTTP/1.1. It is derived
+     * from the shared client and still shares it's pool and TLS sessions.
+     */
+    @Provides
+    @Singleton
+    @DownloadHttpClient
+    fun provideDownloadHttpClient(okHttpClient: OkHttpClient): OkHttpClient =
+        okHttpClient.newBuilder()
+            .protocols(listOf(Protocol.HTTP_1_1))
+            .build()
+
     @Provides
     fun provideApplicationScope(@ApplicationContext context: Context) =
         (context as UpdaterApp).applicationScope
@@ -42,7 +100,9 @@ object AppModule {
         @ApplicationContext context: Context,
         applicationScope: CoroutineScope,
         otaFileManager: OTAFileManager,
-        batteryMonitor: BatteryMonitor
+        batteryMonitor: BatteryMonitor,
+        okHttpClient: OkHttpClient,
+        @DownloadHttpClient downloadHttpClient: OkHttpClient,
     ): UpdateManager =
         if (DeviceInfo.isAB()) {
             ABUpdateManager(
@@ -50,7 +110,9 @@ object AppModule {
                 applicationScope,
                 otaFileManager,
                 UpdateEngine(),
-                batteryMonitor
+                batteryMonitor,
+                okHttpClient,
+                downloadHttpClient
             )
         } else {
             AOnlyUpdateManager(
@@ -60,4 +122,12 @@ object AppModule {
                 batteryMonitor
             )
         }
-}
\ No newline at end of file
+
+    // Same as the default size of the framework connection pool in WAL mode
+    private const val MAX_QUERY_THREADS = 4
+
+    private const val MAX_IDLE_CONNECTIONS = 8
+    private const val KEEP_ALIVE_DURATION = 5L
+    private const val CONNECT_TIMEOUT = 15L
+    private const val READ_TIMEOUT = 30L
+}
@@ -40,7 +40,6 @@ import kotlinx.coroutines.cancel
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
-import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.launch
 
 @AndroidEntryPoint
@@ -85,7 +84,7 @@ class PeriodicUpdateCheckerService : Service() {
                     R.string.auto_update_check_failed,
                     R.string.auto_update_check_failed_desc
                 )
-            val updateInfo = mainRepository.getUpdateInfo().first()
+            val updateInfo = mainRepository.readUpdateInfo()
             if (updateInfo.type == UpdateInfo.Type.NEW_UPDATE) {
                 notifyUser(R.string.new_system_update, R.string.new_system_update_description)
             }
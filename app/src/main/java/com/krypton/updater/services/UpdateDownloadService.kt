@@ -25,6 +25,8 @@ import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
 import android.content.IntentFilter
+import android.text.format.DateUtils
+import android.text.format.Formatter
 import android.util.Log
 
 import androidx.core.app.NotificationCompat
@@ -37,6 +39,7 @@ import com.krypton.updater.ui.MainActivity
 
 import dagger.hilt.android.AndroidEntryPoint
 
+import java.util.concurrent.TimeUnit
 import javax.inject.Inject
 
 import kotlin.math.roundToInt
@@ -146,7 +149,7 @@ class UpdateDownloadService : JobService() {
             when (it) {
                 is DownloadState.Idle, is DownloadState.Waiting -> {}
                 is DownloadState.Downloading -> {
-                    updateProgressNotification(it.progress)
+                    updateProgressNotification(it)
                 }
                 is DownloadState.Failed -> {
                     showDownloadFailedNotification(it.exception?.localizedMessage)
@@ -198,7 +201,16 @@ class UpdateDownloadService : JobService() {
         )
     }
 
-    private fun updateProgressNotification(progress: Float) {
+    private fun updateProgressNotification(state: DownloadState.Downloading) {
+        val transferDetails = getString(
+            R.string.download_transfer_details_format,
+            Formatter.formatShortFileSize(this, state.downloadedBytes),
+            Formatter.formatShortFileSize(this, state.totalBytes),
+            Formatter.formatShortFileSize(this, state.bytesPerSecond),
+            state.etaMillis?.let {
+                DateUtils.formatElapsedTime(TimeUnit.MILLISECONDS.toSeconds(it))
+            } ?: getString(R.string.unknown_eta)
+        )
         notificationManager.notify(
             DOWNLOAD_NOTIFICATION_ID,
             NotificationCompat.Builder(this, DOWNLOAD_NOTIFICATION_CHANNEL_ID)
@@ -206,8 +218,9 @@ class UpdateDownloadService : JobService() {
                 .setPriority(NotificationCompat.PRIORITY_DEFAULT)
                 .setSmallIcon(R.drawable.ic_baseline_system_update_24)
                 .setContentTitle(getString(R.string.downloading_update))
-                .setContentText(downloadRepository.downloadFileName)
-                .setProgress(100, progress.roundToInt(), false)
+                .setContentText(transferDetails)
+                .setSubText(downloadRepository.downloadFileName)
+                .setProgress(100, state.progress.roundToInt(), false)
                 .setOngoing(true)
                 .setSilent(true)
                 .addAction(
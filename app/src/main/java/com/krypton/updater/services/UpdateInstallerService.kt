@@ -90,6 +90,8 @@ class UpdateInstallerService : Service() {
     override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
         if (intent?.action == ACTION_START_UPDATE) {
             startUpdate()
+        } else if (intent?.action == ACTION_START_STREAMING_UPDATE) {
+            startStreamingUpdate(intent.getStringExtra(EXTRA_DOWNLOAD_SOURCE))
         }
         return super.onStartCommand(intent, flags, startId)
     }
@@ -236,6 +238,13 @@ class UpdateInstallerService : Service() {
         }
     }
 
+    private fun startStreamingUpdate(downloadSource: String?) {
+        logD("starting streaming update, source = $downloadSource")
+        serviceScope.launch {
+            updateRepository.startStreaming(downloadSource)
+        }
+    }
+
     fun pauseOrResumeUpdate() {
         if (!updateRepository.supportsUpdateSuspension) {
             logD("Does not support suspending update, aborting")
@@ -295,6 +304,8 @@ class UpdateInstallerService : Service() {
         private const val REBOOT_REQUEST_CODE = 40001
 
         const val ACTION_START_UPDATE = "com.krypton.updater.ACTION_START_UPDATE"
+        const val ACTION_START_STREAMING_UPDATE = "com.krypton.updater.ACTION_START_STREAMING_UPDATE"
+        const val EXTRA_DOWNLOAD_SOURCE = "com.krypton.updater.EXTRA_DOWNLOAD_SOURCE"
         private const val ACTION_CANCEL_UPDATE = "com.krypton.updater.ACTION_CANCEL_UPDATE"
         private const val ACTION_REBOOT = "com.krypton.updater.ACTION_REBOOT"
 
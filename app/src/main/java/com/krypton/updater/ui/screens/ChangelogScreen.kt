@@ -19,16 +19,17 @@ package com.krypton.updater.ui.screens
 import androidx.compose.foundation.isSystemInDarkTheme
 import androidx.compose.foundation.layout.fillMaxWidth
 import androidx.compose.foundation.layout.padding
-import androidx.compose.foundation.lazy.items
 import androidx.compose.foundation.text.selection.SelectionContainer
+import androidx.compose.material.icons.Icons
+import androidx.compose.material.icons.filled.Search
 import androidx.compose.material3.*
 import androidx.compose.runtime.Composable
 import androidx.compose.runtime.collectAsState
 import androidx.compose.runtime.getValue
-import androidx.compose.runtime.remember
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.platform.LocalContext
 import androidx.compose.ui.res.stringResource
+import androidx.compose.ui.text.AnnotatedString
 import androidx.compose.ui.text.SpanStyle
 import androidx.compose.ui.text.buildAnnotatedString
 import androidx.compose.ui.text.font.FontWeight
@@ -36,13 +37,19 @@ import androidx.compose.ui.text.withStyle
 import androidx.compose.ui.unit.dp
 import androidx.hilt.navigation.compose.hiltViewModel
 import androidx.navigation.NavHostController
+import androidx.paging.LoadState
+import androidx.paging.compose.collectAsLazyPagingItems
+import androidx.paging.compose.items
 
 import com.google.accompanist.systemuicontroller.SystemUiController
 import com.krypton.updater.R
+import com.krypton.updater.data.room.ChangelogItem
 import com.krypton.updater.viewmodel.ChangelogViewModel
 
 import java.text.DateFormat
+import java.util.Date
 
+@OptIn(ExperimentalMaterial3Api::class)
 @Composable
 fun ChangelogScreen(
     changelogViewModel: ChangelogViewModel = hiltViewModel(),
@@ -51,8 +58,12 @@ fun ChangelogScreen(
 ) {
     val isSystemInDarkTheme = isSystemInDarkTheme()
     val locale = LocalContext.current.resources.configuration.locales[0]
-    val changelogListState = changelogViewModel.changelog.collectAsState(emptyList())
-    val changelogList by remember { changelogListState }
+    val searchQuery by changelogViewModel.searchQuery.collectAsState()
+    val changelogItems = changelogViewModel.changelog.collectAsLazyPagingItems()
+    val highlightStyle = SpanStyle(
+        fontWeight = FontWeight.Bold,
+        background = MaterialTheme.colorScheme.primaryContainer
+    )
     CollapsingToolbarScreen(
         title = stringResource(R.string.changelog),
         backButtonContentDescription = stringResource(R.string.changelog_back_button_desc),
@@ -64,31 +75,76 @@ fun ChangelogScreen(
             )
         },
     ) {
+        item {
+            OutlinedTextField(
+                modifier = Modifier
+                    .fillMaxWidth()
+                    .padding(horizontal = 24.dp),
+                value = searchQuery,
+                onValueChange = { changelogViewModel.setSearchQuery(it) },
+                singleLine = true,
+                leadingIcon = {
+                    Icon(imageVector = Icons.Filled.Search, contentDescription = null)
+                },
+                placeholder = {
+                    Text(text = stringResource(id = R.string.search_changelog))
+                }
+            )
+        }
         val dateFormatInstance = DateFormat.getDateInstance(DateFormat.DEFAULT, locale)
-        if (changelogList.isEmpty()) {
-            item {
-                Text(text = stringResource(id = R.string.changelog_unavailable))
+        if (changelogItems.itemCount == 0) {
+            if (changelogItems.loadState.refresh is LoadState.NotLoading) {
+                item {
+                    Text(
+                        text = stringResource(
+                            id = if (searchQuery.isBlank()) {
+                                R.string.changelog_unavailable
+                            } else {
+                                R.string.changelog_no_matches
+                            }
+                        )
+                    )
+                }
             }
         } else {
-            items(changelogList) {
-                SelectionContainer {
-                    Text(
-                        modifier = Modifier
-                            .fillMaxWidth()
-                            .padding(start = 24.dp),
-                        text = buildAnnotatedString {
-                            it.second?.let { changelog ->
+            items(changelogItems) { changelogItem ->
+                changelogItem?.text?.let { changelog ->
+                    SelectionContainer {
+                        Text(
+                            modifier = Modifier
+                                .fillMaxWidth()
+                                .padding(start = 24.dp),
+                            text = buildAnnotatedString {
                                 withStyle(style = SpanStyle(fontWeight = FontWeight.Bold)) {
-                                    append(dateFormatInstance.format(it.first))
+                                    append(dateFormatInstance.format(Date(changelogItem.date)))
                                 }
                                 append("\n")
-                                append(changelog)
-                            }
-                        },
-                        color = MaterialTheme.colorScheme.onSurface
-                    )
+                                append(highlightMatches(changelog, highlightStyle))
+                            },
+                            color = MaterialTheme.colorScheme.onSurface
+                        )
+                    }
                 }
             }
         }
     }
-}
\ No newline at end of file
+}
+
+/**
+ * Strip the highlight markers of a search snippet and
+ * style the text between them with [highlightStyle].
+ */
+private fun highlightMatches(text: String, highlightStyle: SpanStyle): AnnotatedString =
+    buildAnnotatedString {
+        text.split(ChangelogItem.HIGHLIGHT_START).forEachIndexed { index, part ->
+            if (index == 0) {
+                append(part)
+                return@forEachIndexed
+            }
+            val match = part.substringBefore(ChangelogItem.HIGHLIGHT_END)
+            withStyle(style = highlightStyle) {
+                append(match)
+            }
+            append(part.substring(match.length).removePrefix(ChangelogItem.HIGHLIGHT_END.toString()))
+        }
+    }
@@ -62,6 +62,7 @@ fun DownloadCard(state: DownloadCardState) {
                     )
                 )
                 val progress by state.progress.collectAsState(initial = 0f)
+                val transferDetails by state.transferDetailsText.collectAsState(initial = null)
                 Column(
                     modifier = Modifier
                         .align(Alignment.Center)
@@ -74,6 +75,10 @@ fun DownloadCard(state: DownloadCardState) {
                         modifier = Modifier.fillMaxWidth(),
                         progress = progress / 100f
                     )
+                    transferDetails?.let {
+                        Spacer(modifier = Modifier.height(4.dp))
+                        Text(text = it, style = MaterialTheme.typography.bodySmall)
+                    }
                 }
             }
         },
@@ -106,11 +111,12 @@ fun DownloadCard(state: DownloadCardState) {
 @Composable
 fun DownloadSourceDialog(
     dismissRequest: () -> Unit,
-    confirmRequest: (String) -> Unit,
+    confirmRequest: (String?) -> Unit,
     sources: Set<String>
 ) {
+    // null stands for automatic selection
     var selectedSource by remember {
-        mutableStateOf(sources.first())
+        mutableStateOf<String?>(null)
     }
     AlertDialog(
         onDismissRequest = dismissRequest,
@@ -130,6 +136,13 @@ fun DownloadSourceDialog(
                     .selectableGroup()
                     .fillMaxWidth()
             ) {
+                RadioListItem(
+                    selected = selectedSource == null,
+                    onClick = {
+                        selectedSource = null
+                    },
+                    title = stringResource(R.string.download_source_automatic)
+                )
                 sources.forEach {
                     RadioListItem(
                         selected = it == selectedSource,
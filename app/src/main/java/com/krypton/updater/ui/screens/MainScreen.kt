@@ -24,6 +24,7 @@ import androidx.compose.animation.*
 import androidx.compose.foundation.layout.*
 import androidx.compose.foundation.shape.RoundedCornerShape
 import androidx.compose.material.icons.Icons
+import androidx.compose.material.icons.filled.Check
 import androidx.compose.material.icons.filled.Clear
 import androidx.compose.material.icons.filled.Menu
 import androidx.compose.material.icons.filled.Settings
@@ -55,9 +56,13 @@ fun MainScreen(state: MainScreenState, modifier: Modifier = Modifier) {
                 false
             )
             val shouldAllowClearingCache by state.shouldAllowClearingCache.collectAsState(false)
+            val shouldAllowVerifyingDownload by state.shouldAllowVerifyingDownload.collectAsState(
+                false
+            )
             AppBar(
                 shouldAllowLocalUpgrade,
                 shouldAllowClearingCache,
+                shouldAllowVerifyingDownload,
                 onRequestLocalUpgrade = {
                     state.startLocalUpgrade(it)
                 },
@@ -69,6 +74,9 @@ fun MainScreen(state: MainScreenState, modifier: Modifier = Modifier) {
                 },
                 onClearCacheRequest = {
                     state.clearCache()
+                },
+                onVerifyDownloadRequest = {
+                    state.verifyDownload()
                 }
             )
         },
@@ -80,6 +88,10 @@ fun MainScreen(state: MainScreenState, modifier: Modifier = Modifier) {
         if (showStateRestoringDialog) {
             ProgressDialog(stringResource(id = R.string.restoring_state))
         }
+        val showVerifyingDownloadDialog by state.showVerifyingDownloadDialog.collectAsState(false)
+        if (showVerifyingDownloadDialog) {
+            ProgressDialog(stringResource(id = R.string.verifying_download))
+        }
         val otaFileCopyStatus by state.otaFileCopyStatus.collectAsState(null)
         FileCopyDialogAndSnackBar(
             otaFileCopyStatus,
@@ -191,10 +203,12 @@ fun MainScreen(state: MainScreenState, modifier: Modifier = Modifier) {
 fun AppBar(
     shouldAllowLocalUpgrade: Boolean,
     shouldAllowClearingCache: Boolean,
+    shouldAllowVerifyingDownload: Boolean,
     onRequestLocalUpgrade: (Uri) -> Unit,
     onSettingsLaunchRequest: () -> Unit,
     onShowDownloadsRequest: () -> Unit,
     onClearCacheRequest: () -> Unit,
+    onVerifyDownloadRequest: () -> Unit,
     modifier: Modifier = Modifier
 ) {
     val localUpgradeLauncher = rememberLauncherForActivityResult(
@@ -237,6 +251,13 @@ fun AppBar(
                         enabled = shouldAllowClearingCache,
                         onClick = onClearCacheRequest
                     ),
+                    MenuItem(
+                        title = stringResource(id = R.string.verify_download),
+                        iconImageVector = Icons.Filled.Check,
+                        contentDescription = stringResource(id = R.string.verify_download_menu_item_desc),
+                        enabled = shouldAllowVerifyingDownload,
+                        onClick = onVerifyDownloadRequest
+                    ),
                     MenuItem(
                         title = stringResource(id = R.string.settings),
                         iconImageVector = Icons.Filled.Settings,
@@ -250,7 +271,7 @@ fun AppBar(
 }
 
 @Composable
-fun ProgressDialog(title: String, modifier: Modifier = Modifier) {
+fun ProgressDialog(title: String, modifier: Modifier = Modifier, progress: Float? = null) {
     AlertDialog(
         modifier = modifier,
         onDismissRequest = {},
@@ -264,7 +285,11 @@ fun ProgressDialog(title: String, modifier: Modifier = Modifier) {
         },
         shape = RoundedCornerShape(32.dp),
         text = {
-            LinearProgressIndicator()
+            if (progress != null) {
+                LinearProgressIndicator(progress = progress / 100)
+            } else {
+                LinearProgressIndicator()
+            }
         },
     )
 }
@@ -279,7 +304,7 @@ fun FileCopyDialogAndSnackBar(
 ) {
     when (status) {
         is FileCopyStatus.Copying -> {
-            ProgressDialog(title)
+            ProgressDialog(title, progress = status.progress)
         }
         is FileCopyStatus.Success -> {
             onShowSnackBarRequest(successMessage)
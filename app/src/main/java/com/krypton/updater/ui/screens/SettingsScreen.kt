@@ -79,5 +79,18 @@ fun SettingsScreen(
                 }
             )
         }
+        if (settingsViewModel.supportsStreamInstall) {
+            item {
+                val streamInstall by settingsViewModel.streamInstall.collectAsState(false)
+                SwitchPreference(
+                    title = stringResource(R.string.stream_install_title),
+                    summary = stringResource(R.string.stream_install_summary),
+                    checked = streamInstall,
+                    onCheckedChange = {
+                        settingsViewModel.setStreamInstall(it)
+                    }
+                )
+            }
+        }
     }
 }
\ No newline at end of file
@@ -16,7 +16,10 @@
 
 package com.krypton.updater.ui.states
 
+import android.content.Context
+import android.content.Intent
 import android.content.res.Resources
+import android.text.format.DateUtils
 import android.util.DataUnit
 
 import androidx.compose.material3.SnackbarDuration
@@ -32,14 +35,17 @@ import androidx.navigation.compose.rememberNavController
 import com.krypton.updater.R
 import com.krypton.updater.data.UpdateInfo
 import com.krypton.updater.data.download.DownloadState
+import com.krypton.updater.services.UpdateInstallerService
 import com.krypton.updater.ui.Routes
 import com.krypton.updater.viewmodel.DownloadViewModel
 import com.krypton.updater.viewmodel.MainViewModel
+import com.krypton.updater.viewmodel.UpdateViewModel
 
 import java.text.DateFormat
 import java.text.DecimalFormat
 import java.util.Date
 import java.util.Locale
+import java.util.concurrent.TimeUnit
 
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.flow.*
@@ -48,8 +54,10 @@ import kotlinx.coroutines.launch
 class DownloadCardState(
     private val mainViewModel: MainViewModel,
     private val downloadViewModel: DownloadViewModel,
+    private val updateViewModel: UpdateViewModel,
     private val snackbarHostState: SnackbarHostState,
     private val coroutineScope: CoroutineScope,
+    private val context: Context,
     private val resources: Resources,
     private val navHostController: NavHostController
 ) {
@@ -84,6 +92,23 @@ class DownloadCardState(
             }
         }
 
+    val transferDetailsText: Flow<String?>
+        get() = downloadViewModel.downloadState.map {
+            if (it is DownloadState.Downloading) {
+                resources.getString(
+                    R.string.download_transfer_details_format,
+                    formatBytes(it.downloadedBytes),
+                    formatBytes(it.totalBytes),
+                    formatBytes(it.bytesPerSecond),
+                    it.etaMillis?.let { eta ->
+                        DateUtils.formatElapsedTime(TimeUnit.MILLISECONDS.toSeconds(eta))
+                    } ?: resources.getString(R.string.unknown_eta)
+                )
+            } else {
+                null
+            }
+        }
+
     val progress: Flow<Float>
         get() = downloadViewModel.downloadState.map {
             when (it) {
@@ -97,9 +122,14 @@ class DownloadCardState(
         get() = resources.getString(R.string.changelog)
 
     val trailingActionButtonText: Flow<String?>
-        get() = downloadViewModel.downloadState.map {
-            when (it) {
-                is DownloadState.Idle, is DownloadState.Failed -> resources.getString(R.string.download)
+        get() = combine(
+            downloadViewModel.downloadState,
+            updateViewModel.streamInstall,
+        ) { state, streamInstall ->
+            when (state) {
+                is DownloadState.Idle, is DownloadState.Failed -> resources.getString(
+                    if (streamInstall) R.string.install else R.string.download
+                )
                 is DownloadState.Waiting, is DownloadState.Downloading, DownloadState.Retry -> resources.getString(
                     android.R.string.cancel
                 )
@@ -154,7 +184,12 @@ class DownloadCardState(
         _shouldShowDownloadSourceDialog.value = false
     }
 
-    fun startDownloadWithSource(source: String) {
+    /**
+     * Start the download from the given mirror.
+     *
+     * @param source name of the mirror, or null to pick one automatically.
+     */
+    fun startDownloadWithSource(source: String?) {
         dismissDownloadSourceDialog()
         coroutineScope.launch {
             startDownload(source)
@@ -162,10 +197,23 @@ class DownloadCardState(
     }
 
     private suspend fun startDownload(source: String? = null) {
+        if (updateViewModel.streamInstall.first()) {
+            startStreamingUpdate(source)
+            return
+        }
         val buildInfo = mainViewModel.updateInfo.firstOrNull()?.buildInfo ?: return
         downloadViewModel.startDownload(buildInfo, source)
     }
 
+    private fun startStreamingUpdate(source: String?) {
+        context.startService(
+            Intent(context, UpdateInstallerService::class.java).apply {
+                action = UpdateInstallerService.ACTION_START_STREAMING_UPDATE
+                putExtra(UpdateInstallerService.EXTRA_DOWNLOAD_SOURCE, source)
+            }
+        )
+    }
+
     companion object {
         private val units = arrayOf("KiB", "MiB", "GiB")
         private val singleDecimalFmt = DecimalFormat("00.0")
@@ -213,23 +261,29 @@ class DownloadCardState(
 fun rememberDownloadCardState(
     mainViewModel: MainViewModel = hiltViewModel(),
     downloadViewModel: DownloadViewModel = hiltViewModel(),
+    updateViewModel: UpdateViewModel = hiltViewModel(),
     snackbarHostState: SnackbarHostState = SnackbarHostState(),
     coroutineScope: CoroutineScope = rememberCoroutineScope(),
-    resources: Resources = LocalContext.current.resources,
+    context: Context = LocalContext.current,
+    resources: Resources = context.resources,
     navHostController: NavHostController = rememberNavController()
 ) = remember(
     mainViewModel,
     downloadViewModel,
+    updateViewModel,
     snackbarHostState,
     coroutineScope,
+    context,
     resources,
     navHostController
 ) {
     DownloadCardState(
         mainViewModel,
         downloadViewModel,
+        updateViewModel,
         snackbarHostState,
         coroutineScope,
+        context,
         resources,
         navHostController
     )
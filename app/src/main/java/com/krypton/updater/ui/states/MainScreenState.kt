@@ -97,9 +97,15 @@ class MainScreenState(
             it !is DownloadState.Waiting && it !is DownloadState.Downloading
         }
 
+    val shouldAllowVerifyingDownload: Flow<Boolean>
+        get() = downloadViewModel.downloadState.map { it is DownloadState.Finished }
+
     val showStateRestoreDialog: StateFlow<Boolean>
         get() = downloadViewModel.restoringDownloadState
 
+    val showVerifyingDownloadDialog: StateFlow<Boolean>
+        get() = downloadViewModel.verifyingDownload
+
     val checkUpdatesContentState: Flow<CheckUpdatesContentState>
         get() = combine(
             mainViewModel.isCheckingForUpdate,
@@ -175,6 +181,10 @@ class MainScreenState(
         mainViewModel.clearCache()
     }
 
+    fun verifyDownload() {
+        downloadViewModel.verifyDownload()
+    }
+
     companion object {
         private fun getFormattedDate(
             locale: Locale,
@@ -17,28 +17,50 @@
 package com.krypton.updater.viewmodel
 
 import androidx.lifecycle.ViewModel
+import androidx.lifecycle.viewModelScope
+import androidx.paging.PagingData
+import androidx.paging.cachedIn
 
 import com.krypton.updater.data.MainRepository
+import com.krypton.updater.data.room.ChangelogItem
 
 import dagger.hilt.android.lifecycle.HiltViewModel
 
-import java.util.Date
-
 import javax.inject.Inject
 
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.FlowPreview
+import kotlinx.coroutines.flow.debounce
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.flatMapLatest
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
 
 @HiltViewModel
 class ChangelogViewModel @Inject constructor(
     private val mainRepository: MainRepository,
 ) : ViewModel() {
 
-    val changelog: Flow<List<Pair<Date, String?>>>
-        get() = mainRepository.getUpdateInfo().map {
-            val changelog = it.changelog ?: return@map emptyList()
-            changelog.keys.sorted().map { date ->
-                Pair(Date(date), changelog[date])
-            }
-        }
-}
\ No newline at end of file
+    private val _searchQuery = MutableStateFlow("")
+    val searchQuery: StateFlow<String>
+        get() = _searchQuery
+
+    @OptIn(FlowPreview::class, ExperimentalCoroutinesApi::class)
+    val changelog: Flow<PagingData<ChangelogItem>> = _searchQuery
+        // Show the full list right away, wait for typing to settle otherwise
+        .debounce { if (it.isBlank()) 0L else SEARCH_DEBOUNCE_DELAY }
+        .map { it.trim() }
+        .distinctUntilChanged()
+        .flatMapLatest { mainRepository.getChangelogs(it) }
+        .cachedIn(viewModelScope)
+
+    fun setSearchQuery(query: String) {
+        _searchQuery.value = query
+    }
+
+    companion object {
+        private const val SEARCH_DEBOUNCE_DELAY = 300L
+    }
+}
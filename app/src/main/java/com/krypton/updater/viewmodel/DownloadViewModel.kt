@@ -49,6 +49,9 @@ class DownloadViewModel @Inject constructor(
     val restoringDownloadState: StateFlow<Boolean>
         get() = downloadRepository.restoringDownloadState
 
+    val verifyingDownload: StateFlow<Boolean>
+        get() = downloadRepository.verifyingDownload
+
     init {
         viewModelScope.launch {
             downloadRepository.downloadState.filterIsInstance<DownloadState.Failed>().collect {
@@ -61,6 +64,10 @@ class DownloadViewModel @Inject constructor(
         downloadRepository.triggerDownload(buildInfo, source)
     }
 
+    fun verifyDownload() {
+        downloadRepository.verifyDownload()
+    }
+
     fun cancelDownload() {
         downloadRepository.cancelDownload()
     }
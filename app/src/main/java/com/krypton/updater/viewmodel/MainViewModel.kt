@@ -45,8 +45,8 @@ class MainViewModel @Inject constructor(
     private val updateRepository: UpdateRepository,
 ) : ViewModel() {
 
-    val updateInfo: Flow<UpdateInfo>
-        get() = mainRepository.getUpdateInfo()
+    val updateInfo: StateFlow<UpdateInfo>
+        get() = mainRepository.updateInfo
 
     val systemBuildDate: Date
         get() = mainRepository.systemBuildDate
@@ -62,13 +62,13 @@ class MainViewModel @Inject constructor(
     val isCheckingForUpdate: StateFlow<Boolean>
         get() = _isCheckingForUpdate
 
-    val updateAvailable: Flow<Boolean>
-        get() = mainRepository.getUpdateInfo().map { it.type == UpdateInfo.Type.NEW_UPDATE }
+    val updateAvailable: Flow<Boolean> = mainRepository.updateInfo
+        .map { it.type == UpdateInfo.Type.NEW_UPDATE }
+        .distinctUntilChanged()
 
-    val updateResultAvailable: Flow<Boolean>
-        get() = mainRepository.getUpdateInfo().map {
-            it.type == UpdateInfo.Type.NEW_UPDATE || it.type == UpdateInfo.Type.NO_UPDATE
-        }
+    val updateResultAvailable: Flow<Boolean> = mainRepository.updateInfo
+        .map { it.type == UpdateInfo.Type.NEW_UPDATE || it.type == UpdateInfo.Type.NO_UPDATE }
+        .distinctUntilChanged()
 
     val updateFailedEvent = Channel<String?>(2, BufferOverflow.DROP_OLDEST)
 
@@ -93,5 +93,9 @@ class MainViewModel @Inject constructor(
 
     fun clearCache() {
         downloadRepository.clearCache()
+        viewModelScope.launch {
+            // The http cache is gone as well
+            mainRepository.invalidateLastFetch()
+        }
     }
 }
\ No newline at end of file
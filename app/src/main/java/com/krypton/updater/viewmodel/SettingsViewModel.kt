@@ -19,6 +19,7 @@ package com.krypton.updater.viewmodel
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
 
+import com.krypton.updater.data.DeviceInfo
 import com.krypton.updater.data.MainRepository
 import com.krypton.updater.data.settings.SettingsRepository
 
@@ -41,6 +42,13 @@ class SettingsViewModel @Inject constructor(
     val optOutIncremental: Flow<Boolean>
         get() = settingsRepository.optOutIncremental
 
+    val streamInstall: Flow<Boolean>
+        get() = settingsRepository.streamInstall
+
+    // update_engine can only stream payloads on A/B devices
+    val supportsStreamInstall: Boolean
+        get() = DeviceInfo.isAB()
+
     /**
      * Set interval (in days) for automatic update checking.
      *
@@ -64,4 +72,15 @@ class SettingsViewModel @Inject constructor(
             settingsRepository.setOptOutIncremental(optOut)
         }
     }
+
+    /**
+     * Set whether to install updates by streaming them.
+     *
+     * @param stream true if streaming, false otherwise.
+     */
+    fun setStreamInstall(stream: Boolean) {
+        viewModelScope.launch {
+            settingsRepository.setStreamInstall(stream)
+        }
+    }
 }
\ No newline at end of file
@@ -6,6 +6,7 @@ import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
 
 import com.krypton.updater.data.FileCopyStatus
+import com.krypton.updater.data.settings.SettingsRepository
 import com.krypton.updater.data.update.UpdateRepository
 import com.krypton.updater.data.update.UpdateState
 
@@ -21,6 +22,7 @@ import kotlinx.coroutines.launch
 @HiltViewModel
 class UpdateViewModel @Inject constructor(
     private val updateRepository: UpdateRepository,
+    private val settingsRepository: SettingsRepository,
 ) : ViewModel() {
 
     val updateState: StateFlow<UpdateState>
@@ -42,6 +44,11 @@ class UpdateViewModel @Inject constructor(
     val supportsUpdateSuspension: Boolean
         get() = updateRepository.supportsUpdateSuspension
 
+    val streamInstall: Flow<Boolean>
+        get() = settingsRepository.streamInstall.map {
+            it && updateRepository.supportsStreaming
+        }
+
     init {
         viewModelScope.launch {
             updateRepository.updateState.filterIsInstance<UpdateState.Failed>()
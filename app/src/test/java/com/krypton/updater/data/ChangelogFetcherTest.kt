@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data
+
+import com.krypton.updater.data.retrofit.Content
+import com.krypton.updater.data.retrofit.GithubApiService
+import com.krypton.updater.data.retrofit.OTAJsonContent
+
+import java.io.IOException
+
+import kotlinx.coroutines.runBlocking
+
+import okhttp3.ResponseBody.Companion.toResponseBody
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+import retrofit2.Response
+
+class ChangelogFetcherTest {
+
+    @Test
+    fun fetch_returnsSuccessfulResponses() {
+        val fetcher = ChangelogFetcher(
+            FakeGithubApiService(
+                mapOf(
+                    "url_1" to Response.success("changelog 1"),
+                    "url_2" to Response.success("changelog 2"),
+                )
+            ),
+            parallelism = 1
+        )
+        val changelogs = runBlocking {
+            fetcher.fetch(listOf(content("changelog_1", "url_1"), content("changelog_2", "url_2")))
+        }
+        assertEquals(mapOf("changelog_1" to "changelog 1", "changelog_2" to "changelog 2"), changelogs)
+    }
+
+    @Test
+    fun fetch_leavesOutErrorResponses() {
+        val fetcher = ChangelogFetcher(
+            FakeGithubApiService(
+                mapOf(
+                    "url_ok" to Response.success("changelog"),
+                    "url_rate_limited" to Response.error(403, "rate limited".toResponseBody()),
+                    "url_missing" to Response.error(404, "not found".toResponseBody()),
+                    "url_server_error" to Response.error(503, "unavailable".toResponseBody()),
+                )
+            ),
+            parallelism = 2
+        )
+        val changelogs = runBlocking {
+            fetcher.fetch(
+                listOf(
+                    content("changelog_ok", "url_ok"),
+                    content("changelog_rate_limited", "url_rate_limited"),
+                    content("changelog_missing", "url_missing"),
+                    content("changelog_server_error", "url_server_error"),
+                    content("changelog_io_error", "url_io_error"),
+                )
+            )
+        }
+        // Nothing is saved for the failed files, so they are fetched again
+        assertEquals(mapOf("changelog_ok" to "changelog"), changelogs)
+    }
+
+    private class FakeGithubApiService(
+        private val changelogs: Map<String, Response<String>>
+    ) : GithubApiService {
+        override suspend fun getOTAJsonContent(url: String): Response<OTAJsonContent> =
+            throw UnsupportedOperationException()
+
+        override suspend fun getContents(device: String, branch: String): Response<List<Content>> =
+            throw UnsupportedOperationException()
+
+        override suspend fun getChangelog(url: String): Response<String> =
+            changelogs[url] ?: throw IOException("Connection reset")
+    }
+
+    private companion object {
+        fun content(name: String, url: String) = Content(name = name, url = url, sha = name.hashCode().toString())
+    }
+}
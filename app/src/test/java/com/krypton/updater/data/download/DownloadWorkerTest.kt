@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.download
+
+import android.os.storage.StorageManager
+
+import java.io.File
+import java.io.RandomAccessFile
+import java.net.URL
+import java.security.MessageDigest
+import java.util.concurrent.TimeUnit
+
+import kotlin.math.min
+import kotlin.random.Random
+
+import kotlinx.coroutines.runBlocking
+
+import okhttp3.OkHttpClient
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import okio.Buffer
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [31])
+class DownloadWorkerTest {
+
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private val server = MockWebServer()
+    private val content = Random(0).nextBytes(FILE_SIZE)
+
+    @Before
+    fun setUp() {
+        server.start()
+    }
+
+    @After
+    fun tearDown() {
+        server.shutdown()
+    }
+
+    @Test
+    fun run_fallsBackToSingleStream_whenRangesAreNotSupported() {
+        // Ignores the Range header and always serves the whole file
+        server.dispatcher = object : Dispatcher() {
+            override fun dispatch(request: RecordedRequest) =
+                MockResponse().setBody(Buffer().write(content))
+        }
+        // A corrupt file of the right size makes the worker repair
+        // every chunk with parallel range requests
+        val downloadFile = tempFolder.newFile()
+        RandomAccessFile(downloadFile, "rw").use { it.setLength(FILE_SIZE.toLong()) }
+
+        val states = runWorker(
+            downloadFile,
+            listOf(server.url("/mirror1").toUrl(), server.url("/mirror2").toUrl())
+        )
+
+        assertEquals(DownloadState.Finished, states.last())
+        assertArrayEquals(content, downloadFile.readBytes())
+        // The mirror is not blamed for it and serves the whole file in one go
+        val lastRequest = generateSequence {
+            server.takeRequest(0, TimeUnit.SECONDS)
+        }.last()
+        assertEquals("/mirror1", lastRequest.path)
+        assertEquals("bytes=0-${FILE_SIZE - 1}", lastRequest.getHeader("Range"))
+    }
+
+    private fun runWorker(downloadFile: File, mirrors: List<URL>): List<DownloadState> {
+        val chunkHashes = (0 until FILE_SIZE step CHUNK_SIZE).map {
+            sha256(content.copyOfRange(it, min(it + CHUNK_SIZE, FILE_SIZE)))
+        }
+        val worker = DownloadWorker(
+            OkHttpClient(),
+            RuntimeEnvironment.getApplication().getSystemService(StorageManager::class.java),
+            downloadFile,
+            mirrors,
+            FILE_SIZE.toLong(),
+            toHex(MessageDigest.getInstance("SHA-512").digest(content)),
+            SEGMENT_COUNT,
+            ChunkManifest(FILE_SIZE.toLong(), CHUNK_SIZE.toLong(), chunkHashes),
+            0,
+            null,
+        )
+        val states = mutableListOf<DownloadState>()
+        runBlocking {
+            worker.run {
+                synchronized(states) {
+                    states.add(it)
+                }
+            }
+        }
+        return states
+    }
+
+    private companion object {
+        const val CHUNK_SIZE = 64 * 1024
+        const val FILE_SIZE = 4 * CHUNK_SIZE + 17
+        const val SEGMENT_COUNT = 4
+
+        fun sha256(data: ByteArray) =
+            toHex(MessageDigest.getInstance("SHA-256").digest(data))
+
+        fun toHex(bytes: ByteArray) =
+            bytes.joinToString("") { String.format("%02x", it) }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.download
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.security.MessageDigest
+
+import kotlin.random.Random
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class FanOutCopierTest {
+
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private val content = Random(0).nextBytes(3 * 1024 * 1024 + 17)
+    private val sha512 = HashVerifier.toHexString(
+        MessageDigest.getInstance("SHA-512").digest(content)
+    )
+    private lateinit var source: File
+
+    @Before
+    fun setUp() {
+        source = tempFolder.newFile().apply { writeBytes(content) }
+    }
+
+    @Test
+    fun copy_writesEverySink() {
+        val outputs = List(2) { ByteArrayOutputStream() }
+        val results = FanOutCopier.copy(
+            source,
+            sha512,
+            outputs.mapIndexed { index, output ->
+                FanOutCopier.Sink(
+                    name = "sink $index",
+                    open = { output },
+                    openForReadBack = { ByteArrayInputStream(output.toByteArray()) },
+                )
+            }
+        )
+        assertTrue(results.all { it.isSuccess })
+        outputs.forEach { assertArrayEquals(content, it.toByteArray()) }
+    }
+
+    @Test
+    fun copy_failsSink_whenReadBackDoesNotMatch() {
+        val results = FanOutCopier.copy(
+            source,
+            sha512,
+            listOf(
+                FanOutCopier.Sink(
+                    name = "corrupt",
+                    open = { ByteArrayOutputStream() },
+                    // Lost the last byte on the way to the storage
+                    openForReadBack = { ByteArrayInputStream(content, 0, content.size - 1) },
+                ),
+                FanOutCopier.Sink(
+                    name = "intact",
+                    open = { ByteArrayOutputStream() },
+                    openForReadBack = { ByteArrayInputStream(content) },
+                ),
+            )
+        )
+        assertTrue(results[0].isFailure)
+        assertTrue(results[1].isSuccess)
+    }
+
+    @Test
+    fun copy_failsEverySink_whenSourceHashDoesNotMatch() {
+        val results = FanOutCopier.copy(
+            source,
+            sha512.reversed(),
+            listOf(FanOutCopier.Sink(name = "sink", open = { ByteArrayOutputStream() }))
+        )
+        assertTrue(results.single().isFailure)
+    }
+}
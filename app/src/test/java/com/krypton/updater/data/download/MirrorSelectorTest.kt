@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.download
+
+import java.net.URL
+
+import okhttp3.OkHttpClient
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [31])
+class MirrorSelectorTest {
+
+    private val first = URL("https://first.example.com/update.zip")
+    private val second = URL("https://second.example.com/update.zip")
+
+    @Test
+    fun onFailure_retriesSameMirror_forTransientFailures() {
+        val selector = MirrorSelector(OkHttpClient(), listOf(first, second))
+        assertTrue(selector.onFailure(first, permanent = false))
+        assertTrue(selector.onFailure(first, permanent = false))
+        assertEquals(first, selector.current)
+        // Third strike
+        assertTrue(selector.onFailure(first, permanent = false))
+        assertEquals(second, selector.current)
+    }
+
+    @Test
+    fun onFailure_switchesRightAway_forPermanentFailures() {
+        val selector = MirrorSelector(OkHttpClient(), listOf(first, second))
+        assertTrue(selector.onFailure(first, permanent = true))
+        assertEquals(second, selector.current)
+    }
+
+    @Test
+    fun onFailure_givesUp_whenNoMirrorIsLeft() {
+        val selector = MirrorSelector(OkHttpClient(), listOf(first, second))
+        selector.onFailure(first, permanent = true)
+        assertFalse(selector.onFailure(second, permanent = true))
+        assertNull(selector.current)
+    }
+
+    @Test
+    fun onFailure_keepsOnlyMirror_untilItFailsRepeatedly() {
+        val selector = MirrorSelector(OkHttpClient(), listOf(first))
+        assertTrue(selector.onFailure(first, permanent = false))
+        assertTrue(selector.onFailure(first, permanent = false))
+        assertFalse(selector.onFailure(first, permanent = false))
+        assertEquals(first, selector.current)
+    }
+}
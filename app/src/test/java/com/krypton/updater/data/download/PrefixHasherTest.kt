@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.download
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+import java.util.BitSet
+
+import kotlin.random.Random
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class PrefixHasherTest {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private val random = Random(0x9f1e)
+    private val data = random.nextBytes(FILE_SIZE)
+
+    // Bytes that have been written and accounted for
+    private val written = BitSet(FILE_SIZE)
+
+    private lateinit var channel: FileChannel
+
+    @Before
+    fun setUp() {
+        channel = FileChannel.open(
+            temporaryFolder.newFile().toPath(),
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE
+        )
+    }
+
+    @After
+    fun tearDown() {
+        channel.close()
+    }
+
+    @Test
+    fun finish_matchesMessageDigest_forInOrderWrites() {
+        val hasher = createHasher(ResumableSha512())
+        createSegments().forEach { write(hasher, it) }
+        assertEquals(sha512(data), hasher.finish())
+    }
+
+    @Test
+    fun finish_matchesMessageDigest_forOutOfOrderWrites() {
+        val hasher = createHasher(ResumableSha512())
+        createSegments().shuffled(random).forEach { write(hasher, it) }
+        assertEquals(sha512(data), hasher.finish())
+    }
+
+    @Test
+    fun finish_matchesMessageDigest_forWritesNotReported() {
+        val hasher = createHasher(ResumableSha512())
+        createSegments().shuffled(random).forEachIndexed { index, segment ->
+            if (index % 2 == 0) {
+                write(hasher, segment)
+            } else {
+                // Like a segment restored from a checkpoint
+                writeToFile(segment)
+                written.set(segment.first, segment.last + 1)
+                hasher.advance()
+            }
+        }
+        assertEquals(sha512(data), hasher.finish())
+    }
+
+    @Test
+    fun saveState_resumesHashing() {
+        val segments = createSegments().shuffled(random)
+        var hasher = createHasher(ResumableSha512())
+        segments.forEachIndexed { index, segment ->
+            write(hasher, segment)
+            if (index % 7 == 0) {
+                val (byteCount, state) = hasher.saveState()
+                val digest = ResumableSha512.restoreState(state)!!
+                assertEquals(byteCount, digest.byteCount)
+                hasher = createHasher(digest)
+            }
+        }
+        assertEquals(sha512(data), hasher.finish())
+    }
+
+    private fun createHasher(digest: ResumableSha512) =
+        PrefixHasher(channel, digest) { offset ->
+            written.nextClearBit(offset.toInt()).coerceAtMost(FILE_SIZE).toLong()
+        }
+
+    // Random sizes, both smaller and larger than the pooled buffers
+    private fun createSegments(): List<IntRange> {
+        val segments = mutableListOf<IntRange>()
+        var start = 0
+        while (start < FILE_SIZE) {
+            val end = minOf(start + random.nextInt(1, 1536 * 1024), FILE_SIZE)
+            segments.add(start until end)
+            start = end
+        }
+        return segments
+    }
+
+    private fun write(hasher: PrefixHasher, segment: IntRange) {
+        writeToFile(segment)
+        val buffer = ByteBuffer.wrap(data, segment.first, segment.last - segment.first + 1)
+        hasher.onWrite(segment.first.toLong(), buffer)
+        assertEquals(segment.first, buffer.position())
+        written.set(segment.first, segment.last + 1)
+    }
+
+    private fun writeToFile(segment: IntRange) {
+        val buffer = ByteBuffer.wrap(data, segment.first, segment.last - segment.first + 1)
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, buffer.position().toLong())
+        }
+    }
+
+    private companion object {
+        const val FILE_SIZE = 5 * 1024 * 1024 + 123
+
+        fun sha512(data: ByteArray): String =
+            MessageDigest.getInstance("SHA-512").digest(data)
+                .joinToString("") { String.format("%02x", it) }
+    }
+}
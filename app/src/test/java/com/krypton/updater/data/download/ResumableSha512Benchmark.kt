@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.download
+
+import java.security.MessageDigest
+
+import kotlin.random.Random
+
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+
+/**
+ * Compares the throughput of [ResumableSha512] with the platform SHA-512.
+ * Neither the JDK nor Conscrypt digests can export their state, they can
+ * only be cloned within the process, which is why the download uses its
+ * own implementation. Since it hashes inline with the network transfer,
+ * it only has to stay well ahead of the download speed.
+ *
+ * Skipped unless RUN_BENCHMARKS is set in the environment:
+ * `RUN_BENCHMARKS=1 ./gradlew :app:testDebugUnitTest --tests '*Benchmark'`
+ */
+class ResumableSha512Benchmark {
+
+    @Test
+    fun compareWithMessageDigest() {
+        assumeTrue(System.getenv("RUN_BENCHMARKS") != null)
+        val data = Random(0).nextBytes(DATA_SIZE)
+        val resumable = measure {
+            ResumableSha512().apply {
+                update(data)
+                digest()
+            }
+        }
+        val platform = measure {
+            MessageDigest.getInstance("SHA-512").digest(data)
+        }
+        println(
+            "ResumableSha512: ${throughput(resumable)} MiB/s, " +
+                "MessageDigest: ${throughput(platform)} MiB/s"
+        )
+    }
+
+    // Best of a few runs after warming up, in ns
+    private inline fun measure(block: () -> Unit): Long {
+        repeat(WARMUP_RUNS) { block() }
+        return (0 until MEASURED_RUNS).minOf {
+            val start = System.nanoTime()
+            block()
+            System.nanoTime() - start
+        }
+    }
+
+    private fun throughput(nanos: Long) =
+        String.format("%.1f", (DATA_SIZE / (1024.0 * 1024.0)) / (nanos / 1e9))
+
+    private companion object {
+        const val DATA_SIZE = 64 * 1024 * 1024
+        const val WARMUP_RUNS = 3
+        const val MEASURED_RUNS = 5
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2022 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.krypton.updater.data.download
+
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+
+import kotlin.random.Random
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class ResumableSha512Test {
+
+    @Test
+    fun digest_matchesMessageDigest_aroundBlockBoundaries() {
+        // 111 and 112 bytes are where the length stops fitting in the
+        // last block, 127 to 129 are around the block size itself
+        listOf(0, 1, 111, 112, 127, 128, 129, 239, 240, 255, 256, 257).forEach { length ->
+            val data = random.nextBytes(length)
+            val digest = ResumableSha512()
+            digest.update(data)
+            assertEquals("length = $length", sha512(data), digest.digest())
+            assertEquals(length.toLong(), digest.byteCount)
+        }
+    }
+
+    @Test
+    fun digest_matchesMessageDigest_forLargeInput() {
+        val data = random.nextBytes(LARGE_SIZE)
+        val digest = ResumableSha512()
+        digest.update(data)
+        assertEquals(sha512(data), digest.digest())
+    }
+
+    @Test
+    fun digest_isIndependentOfHowInputIsSplit() {
+        val data = random.nextBytes(LARGE_SIZE)
+        val digest = ResumableSha512()
+        var position = 0
+        while (position < data.size) {
+            val length = minOf(random.nextInt(1, 3 * 128), data.size - position)
+            // Mix both update variants, including direct buffers
+            when (random.nextInt(3)) {
+                0 -> digest.update(data, position, length)
+                1 -> digest.update(ByteBuffer.wrap(data, position, length))
+                else -> digest.update(
+                    ByteBuffer.allocateDirect(length).put(data, position, length).apply { flip() }
+                )
+            }
+            position += length
+        }
+        assertEquals(sha512(data), digest.digest())
+    }
+
+    @Test
+    fun update_consumesByteBuffer() {
+        val buffer = ByteBuffer.wrap(random.nextBytes(300))
+        ResumableSha512().update(buffer)
+        assertEquals(buffer.limit(), buffer.position())
+    }
+
+    @Test
+    fun digest_canBeUpdatedFurther() {
+        val data = random.nextBytes(1000)
+        val digest = ResumableSha512()
+        digest.update(data, 0, 500)
+        assertEquals(sha512(data.copyOf(500)), digest.digest())
+        digest.update(data, 500, 500)
+        assertEquals(sha512(data), digest.digest())
+    }
+
+    @Test
+    fun restoreState_resumesDigest() {
+        val data = random.nextBytes(LARGE_SIZE)
+        val splitPoints = listOf(0, 1, 111, 112, 127, 128, 129, 4096, data.size) +
+            List(16) { random.nextInt(data.size) }
+        splitPoints.forEach { split ->
+            val digest = ResumableSha512()
+            digest.update(data, 0, split)
+            val restored = ResumableSha512.restoreState(digest.saveState())
+            assertNotNull("split = $split", restored)
+            assertEquals(split.toLong(), restored!!.byteCount)
+            restored.update(data, split, data.size - split)
+            assertEquals("split = $split", sha512(data), restored.digest())
+        }
+    }
+
+    @Test
+    fun restoreState_survivesRepeatedCheckpoints() {
+        val data = random.nextBytes(LARGE_SIZE)
+        var digest = ResumableSha512()
+        var position = 0
+        while (position < data.size) {
+            val length = minOf(random.nextInt(1, 64 * 1024), data.size - position)
+            digest.update(data, position, length)
+            position += length
+            digest = ResumableSha512.restoreState(digest.saveState())!!
+        }
+        assertEquals(sha512(data), digest.digest())
+    }
+
+    @Test
+    fun restoreState_rejectsMalformedState() {
+        val digest = ResumableSha512()
+        digest.update(random.nextBytes(200))
+        val state = digest.saveState()
+        assertNull(ResumableSha512.restoreState(ByteArray(0)))
+        // Block length not matching the byte count
+        assertNull(ResumableSha512.restoreState(state.copyOf(state.size - 1)))
+        assertNull(ResumableSha512.restoreState(state + 0.toByte()))
+        // Longer than a block
+        assertNull(ResumableSha512.restoreState(ByteArray(72 + 128)))
+    }
+
+    private companion object {
+        const val LARGE_SIZE = 3 * 1024 * 1024 + 17
+
+        val random = Random(0x5ba512)
+
+        fun sha512(data: ByteArray): String =
+            MessageDigest.getInstance("SHA-512").digest(data)
+                .joinToString("") { String.format("%02x", it) }
+    }
+}